@@ -0,0 +1,132 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed set of direct buffers, one block each, that hold received piece
+ * data between the PeerConnection that decodes it and the Torrent that writes
+ * it to storage.  Buffers are borrowed on the I/O threads and returned on the
+ * Torrent thread, so the pool is lock-free.  When it runs dry, blocks are put
+ * in ordinary heap buffers instead and counted, and once it is mostly in use
+ * the Torrent stops sending new requests until it drains again.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class BlockPool {
+
+	public static final int SIZE = Integer.getInteger("rubt.blockPoolSize", 512);
+
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final int capacity;
+	private final int blockSize;
+	private final int highWater;
+
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	// When the pool went over its high-water mark, or 0 if it is below it.
+	private final AtomicLong pressureSince = new AtomicLong();
+	private final AtomicLong pressureMillis = new AtomicLong();
+
+	/**
+	 * Allocates every buffer of the pool up front.
+	 *
+	 * @param capacity Number of buffers
+	 * @param blockSize Size of each buffer
+	 */
+	public BlockPool(int capacity, int blockSize) {
+		this.capacity = capacity;
+		this.blockSize = blockSize;
+		this.highWater = capacity - capacity / 4;
+		for (int i = 0; i < capacity; ++i) {
+			free.add(ByteBuffer.allocateDirect(blockSize));
+		}
+	}
+
+	/**
+	 * Borrows a buffer for a block.  Never blocks.
+	 *
+	 * @param length Size of the block
+	 * @return A buffer with position 0 and limit length
+	 */
+	public ByteBuffer acquire(int length) {
+		ByteBuffer bb = length <= blockSize ? free.poll() : null;
+		if (bb == null) {
+			misses.incrementAndGet();
+			return ByteBuffer.allocate(length);
+		}
+		hits.incrementAndGet();
+		int used = inUse.incrementAndGet();
+		int p;
+		while (used > (p = peak.get()) && !peak.compareAndSet(p, used)) {
+			// Somebody else raised the peak, try again.
+		}
+		if (used == highWater) {
+			pressureSince.compareAndSet(0, System.currentTimeMillis());
+		}
+		bb.clear().limit(length);
+		return bb;
+	}
+
+	/**
+	 * Returns a buffer obtained from acquire.  Heap buffers handed out when
+	 * the pool was empty are simply dropped.
+	 *
+	 * @param bb The buffer
+	 */
+	public void release(ByteBuffer bb) {
+		if (!bb.isDirect())
+			return;
+		free.add(bb);
+		if (inUse.decrementAndGet() == highWater - 1) {
+			long since = pressureSince.getAndSet(0);
+			if (since != 0)
+				pressureMillis.addAndGet(System.currentTimeMillis() - since);
+		}
+	}
+
+	/**
+	 * @return Whether the pool is so full that no new blocks should be requested
+	 */
+	public boolean isUnderPressure() {
+		return capacity > 0 && inUse.get() >= highWater;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getInUse() {
+		return inUse.get();
+	}
+
+	public int getPeakInUse() {
+		return peak.get();
+	}
+
+	/**
+	 * @return Number of blocks that were given a buffer from the pool
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of blocks that had to go into heap buffers because the pool was empty
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return Total milliseconds requests were held back because the pool was full
+	 */
+	public long getPressureMillis() {
+		long since = pressureSince.get();
+		return pressureMillis.get() + (since == 0 ? 0 : System.currentTimeMillis() - since);
+	}
+}
@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+/**
+ * Decides which peers we upload to, tit-for-tat style.  Every round, the
+ * interested peers that gave us the most in the last few seconds get the
+ * regular upload slots.  One more peer is unchoked optimistically, chosen at
+ * random and kept for several rounds, so that new peers get a chance to show
+ * what they can do.  When we are seeding nobody uploads to us, so peers are
+ * ranked by how fast they take our data instead.
+ *
+ * The decision only depends on its inputs: the same peers, rates, time and
+ * random numbers always give the same answer.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class Choker {
+
+	public static final int SLOTS = Integer.getInteger("rubt.uploadSlots", 4);
+	public static final long INTERVAL = Integer.getInteger("rubt.chokeInterval", 10) * 1000L;
+	public static final long OPTIMISTIC_INTERVAL = 3 * INTERVAL;
+
+	private int slots;
+	private long optimisticInterval;
+	private Random random;
+	private Peer optimistic = null;
+	private long optimisticUntil = 0;
+
+	/**
+	 * @param slots Number of regular upload slots
+	 * @param optimisticInterval Milliseconds to keep an optimistic unchoke before picking another
+	 * @param random Where the optimistic unchokes come from
+	 */
+	public Choker(int slots, long optimisticInterval, Random random) {
+		this.slots = slots;
+		this.optimisticInterval = optimisticInterval;
+		this.random = random;
+	}
+
+	/**
+	 * Runs one round.
+	 *
+	 * @param peers Every peer we are connected to, in a stable order
+	 * @param seeding Whether we have the whole file
+	 * @param now Current time in milliseconds
+	 * @return The peers that should be unchoked; all others should be choked
+	 */
+	public HashSet<Peer> choose(Collection<Peer> peers, boolean seeding, long now) {
+		ArrayList<Peer> candidates = new ArrayList<Peer>();
+		final IdentityHashMap<Peer, Long> rates = new IdentityHashMap<Peer, Long>();
+		for (Peer p : peers) {
+			if (p.handshook && p.interested) {
+				candidates.add(p);
+				rates.put(p, (seeding ? p.getUploadRate() : p.getDownloadRate()).getRate(now));
+			}
+		}
+		// The sort is stable, so peers with equal rates keep their order.
+		Collections.sort(candidates, new Comparator<Peer>() {
+			@Override
+			public int compare(Peer a, Peer b) {
+				return rates.get(b).compareTo(rates.get(a));
+			}
+		});
+
+		HashSet<Peer> unchoke = new HashSet<Peer>();
+		for (int i = 0; i < candidates.size() && i < slots; ++i) {
+			unchoke.add(candidates.get(i));
+		}
+
+		// Pick a new optimistic unchoke when its time is up, when it left or lost
+		// interest, or when it earned a regular slot.
+		if (optimistic == null || now >= optimisticUntil || !rates.containsKey(optimistic) || unchoke.contains(optimistic)) {
+			ArrayList<Peer> choked = new ArrayList<Peer>();
+			for (Peer p : candidates) {
+				if (!unchoke.contains(p))
+					choked.add(p);
+			}
+			optimistic = choked.isEmpty() ? null : choked.get(random.nextInt(choked.size()));
+			optimisticUntil = now + optimisticInterval;
+		}
+		if (optimistic != null)
+			unchoke.add(optimistic);
+		return unchoke;
+	}
+
+	/**
+	 * @return The current optimistic unchoke, or null if there is none
+	 */
+	public Peer getOptimistic() {
+		return optimistic;
+	}
+}
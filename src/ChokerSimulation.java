@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Runs the Choker over simulated rounds with made-up transfer rates and
+ * checks its decisions: the fastest interested peers get the regular slots,
+ * uninterested peers are never unchoked, the optimistic unchoke is a choked
+ * peer, is kept for its whole interval and sooner or later reaches every
+ * peer, a peer that speeds up earns a slot at the next round, seeding ranks
+ * by upload rate, and the same random seed gives the same rounds.  Exits
+ * with status 1 at the first wrong decision.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class ChokerSimulation {
+
+	private static final int SLOTS = 4;
+	private static final long INTERVAL = 10000;
+	private static final long OPTIMISTIC_INTERVAL = 3 * INTERVAL;
+	private static final int PEERS = 12;
+	// Enough optimistic rotations for each slow peer to get a turn.
+	private static final int ROUNDS = 60;
+
+	public static void main(String[] args) {
+		String first = simulate(false);
+		check(first.equals(simulate(false)), "the same seed gives the same rounds");
+		simulate(true);
+		System.out.println("ok");
+	}
+
+	/**
+	 * @param seeding Whether to rank by upload rather than download rate
+	 * @return Every round's unchoked peers, for comparing runs
+	 */
+	private static String simulate(boolean seeding) {
+		// Rate estimators count from when they are made, so run the clock ahead of it.
+		long now = (System.currentTimeMillis() / 500 + 100) * 500;
+		Choker choker = new Choker(SLOTS, OPTIMISTIC_INTERVAL, new Random(352));
+		ArrayList<Peer> peers = new ArrayList<Peer>();
+		long[] rates = new long[PEERS];
+		for (int i = 0; i < PEERS; ++i) {
+			Peer p = new Peer(null, null);
+			p.handshook = true;
+			// The two fastest peers want nothing from us.
+			p.interested = i < PEERS - 2;
+			rates[i] = (i + 1) * 10000L;
+			peers.add(p);
+		}
+		String mode = seeding ? "seeding: " : "leeching: ";
+
+		StringBuilder history = new StringBuilder();
+		HashSet<Peer> optimists = new HashSet<Peer>();
+		Peer optimistic = null;
+		long optimisticSince = 0;
+		for (int round = 0; round < ROUNDS; ++round, now += INTERVAL) {
+			if (round == ROUNDS / 2) {
+				// The slowest peer becomes the fastest interested one.
+				rates[0] = 1000000;
+			}
+			for (int i = 0; i < PEERS; ++i)
+				transfer(peers.get(i), rates[i], now, seeding);
+
+			HashSet<Peer> unchoked = choker.choose(peers, seeding, now);
+			history.append(round).append(':');
+			for (int i = 0; i < PEERS; ++i) {
+				if (unchoked.contains(peers.get(i)))
+					history.append(' ').append(i);
+			}
+			history.append('\n');
+
+			// The fastest interested peers: peer 0 once it has sped up, then the highest numbered.
+			HashSet<Peer> best = new HashSet<Peer>();
+			if (round >= ROUNDS / 2)
+				best.add(peers.get(0));
+			for (int i = PEERS - 3; best.size() < SLOTS; --i)
+				best.add(peers.get(i));
+			check(unchoked.containsAll(best), mode + "round " + round + " unchokes the " + SLOTS + " fastest interested peers");
+			check(unchoked.size() == SLOTS + 1, mode + "round " + round + " unchokes one peer optimistically");
+			for (int i = PEERS - 2; i < PEERS; ++i)
+				check(!unchoked.contains(peers.get(i)), mode + "round " + round + " leaves uninterested peers choked");
+
+			Peer o = choker.getOptimistic();
+			check(o != null && unchoked.contains(o) && !best.contains(o), mode + "round " + round + " picks a choked peer optimistically");
+			if (o != optimistic) {
+				check(optimistic == null || best.contains(optimistic) || now - optimisticSince >= OPTIMISTIC_INTERVAL,
+						mode + "round " + round + " keeps the optimistic unchoke for its interval");
+				optimistic = o;
+				optimisticSince = now;
+			}
+			optimists.add(o);
+		}
+		// Peer 0 is only slow for the first half, the others until the end.
+		int choked = 0;
+		for (int i = 0; i < PEERS - 2 - SLOTS; ++i)
+			choked += optimists.contains(peers.get(i)) ? 1 : 0;
+		check(choked == PEERS - 2 - SLOTS, mode + "every slow interested peer gets an optimistic unchoke");
+		return history.toString();
+	}
+
+	/**
+	 * Counts a round's worth of bytes, spread over the half-second buckets
+	 * of the rate estimator's window.
+	 */
+	private static void transfer(Peer p, long rate, long now, boolean seeding) {
+		RateEstimator r = seeding ? p.getUploadRate() : p.getDownloadRate();
+		for (long t = now - 3500; t <= now; t += 500)
+			r.add(rate / 2, t);
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.out.println("FAILED: " + what);
+			System.exit(1);
+		}
+	}
+}
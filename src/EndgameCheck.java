@@ -0,0 +1,169 @@
+import edu.rutgers.cs.cs352.bt.TorrentInfo;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives a Torrent through endgame with three made-up peers that have every
+ * piece.  The first answers each request with the right block, the other
+ * two never answer, so the last slices can only come from the first peer
+ * once it is asked for them again in endgame.  Every slice the others were
+ * asked for must then be cancelled with them exactly once, and nothing
+ * else: no Cancel to the peer that sent the block, and none for a slice
+ * they were never asked for.  The file must end up whole, a block that
+ * arrives after its Cancel must be counted as a duplicate, and a fourth
+ * peer that shakes hands with the wrong info hash must be asked for
+ * nothing.  Exits with status 1 if anything is wrong.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class EndgameCheck {
+
+	private static final int PIECE_SIZE = 64 * 1024;
+	private static final int PIECES = 8;
+
+	public static void main(String[] args) throws Exception {
+		byte[] data = new byte[PIECE_SIZE * PIECES - 1000];
+		new Random(352).nextBytes(data);
+		TorrentInfo ti = SyntheticTorrent.info(data, PIECE_SIZE);
+		String path = SyntheticTorrent.file(null);
+		Torrent torrent = new Torrent(ti, path);
+
+		FakePeer seeder = new FakePeer(torrent, 1);
+		FakePeer[] silent = {new FakePeer(torrent, 2), new FakePeer(torrent, 3)};
+		// Has every piece too, but shakes hands for some other torrent.
+		FakePeer stranger = new FakePeer(torrent, 4);
+		for (FakePeer fp : new FakePeer[]{seeder, silent[0], silent[1], stranger}) {
+			torrent.addPeer(new Peer(fp.id, fp));
+			byte[] handshake = new byte[68];
+			handshake[0] = 19;
+			System.arraycopy(PeerConnection.PROTOCOL_HEADER, 0, handshake, 1, 19);
+			System.arraycopy(ti.info_hash.array(), 0, handshake, 1 + 19 + 8, 20);
+			if (fp == stranger)
+				handshake[1 + 19 + 8 + 19] ^= 1;
+			torrent.recvMessage(PeerMessage.Handshake(fp.id, ByteBuffer.wrap(handshake)));
+			BitSet all = new BitSet();
+			all.set(0, PIECES);
+			torrent.recvMessage(PeerMessage.Bitfield(fp.id, all));
+			torrent.recvMessage(PeerMessage.Unchoke(fp.id));
+		}
+
+		// Only the seeder answers, one batch of its requests per pass of the run loop.
+		int answered = 0;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!complete(torrent) && System.currentTimeMillis() < deadline) {
+			torrent.step();
+			List<int[]> asked = seeder.requests;
+			for (; answered < asked.size(); ++answered) {
+				int[] r = asked.get(answered);
+				ByteBuffer block = ByteBuffer.wrap(data, r[0] * PIECE_SIZE + r[1], r[2]).slice();
+				torrent.recvMessage(PeerMessage.Piece(seeder.id, r[0], r[1], block));
+			}
+			// Give the hasher a moment with any piece that was not hashed as it arrived.
+			Thread.sleep(1);
+		}
+		check(complete(torrent), "every piece is downloaded from the one peer that answers");
+
+		byte[] got = new byte[data.length];
+		RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+		file.readFully(got);
+		file.close();
+		check(Arrays.equals(got, data), "the file holds what the peer sent");
+
+		check(stranger.requests.isEmpty(), "a peer whose handshake has the wrong info hash is asked for nothing");
+
+		HashSet<String> fromSeeder = keys(seeder.requests);
+		check(seeder.cancels.isEmpty(), "nothing is cancelled with the peer that sent the blocks");
+		int duplicates = 0;
+		for (FakePeer fp : silent) {
+			check(!fp.requests.isEmpty(), "peer " + fp.number + " is asked for something");
+			HashSet<String> asked = keys(fp.requests);
+			check(asked.size() == fp.requests.size(), "peer " + fp.number + " is asked for each slice at most once");
+			HashSet<String> cancelled = keys(fp.cancels);
+			check(cancelled.size() == fp.cancels.size(), "peer " + fp.number + " gets at most one Cancel per slice");
+			check(asked.equals(cancelled), "peer " + fp.number + " gets a Cancel for exactly the slices it was asked for, "
+					+ fp.cancels.size() + " Cancels for " + fp.requests.size() + " requests");
+			asked.retainAll(fromSeeder);
+			check(asked.size() == fp.requests.size(), "every slice peer " + fp.number + " was asked for is asked of the other peer in endgame");
+			duplicates += asked.size();
+		}
+		check(duplicates > 0, "endgame asks for slices a second time");
+
+		// A block that crossed its Cancel on the wire.
+		int[] late = silent[0].cancels.get(0);
+		long duplicateBlocks = torrent.getDuplicateBlocks(), wastedBytes = torrent.getWastedBytes();
+		torrent.recvMessage(PeerMessage.Piece(silent[0].id, late[0], late[1], ByteBuffer.wrap(data, late[0] * PIECE_SIZE + late[1], late[2]).slice()));
+		torrent.step();
+		check(torrent.getDuplicateBlocks() == duplicateBlocks + 1, "a block after its Cancel counts as a duplicate");
+		check(torrent.getWastedBytes() == wastedBytes + late[2], "a block after its Cancel counts as wasted");
+
+		System.out.println();
+		System.out.println(seeder.requests.size() + " requests to the peer that answers, " + duplicates
+				+ " of them for slices already asked of the others");
+		System.out.println("ok");
+		System.exit(0);
+	}
+
+	/**
+	 * A connection that is never made, and remembers the Requests and
+	 * Cancels it is given instead of sending them.
+	 */
+	private static class FakePeer extends PeerConnection {
+		final int number;
+		final PeerId id;
+		final List<int[]> requests = new ArrayList<int[]>();
+		final List<int[]> cancels = new ArrayList<int[]>();
+
+		FakePeer(Torrent torrent, int number) {
+			this(torrent, number, PeerId.fromAddress(ByteBuffer.wrap(new byte[]{127, 0, 0, (byte) number, 0x1a, (byte) 0xe1})));
+		}
+
+		private FakePeer(Torrent torrent, int number, PeerId id) {
+			super(torrent, null, "127.0.0." + number, 6881, id);
+			this.number = number;
+			this.id = id;
+		}
+
+		@Override
+		public boolean sendRequest(int index, int begin, int length) {
+			requests.add(new int[]{index, begin, length});
+			return true;
+		}
+
+		@Override
+		public boolean sendCancel(int index, int begin, int length) {
+			cancels.add(new int[]{index, begin, length});
+			return true;
+		}
+	}
+
+	private static boolean complete(Torrent torrent) {
+		ByteBuffer bf = torrent.getBitField();
+		if (bf == null)
+			return false;
+		return BitSet.valueOf(bf).cardinality() == PIECES;
+	}
+
+	private static HashSet<String> keys(List<int[]> blocks) {
+		HashSet<String> keys = new HashSet<String>();
+		for (int[] b : blocks)
+			keys.add(b[0] + ":" + b[1] + ":" + b[2]);
+		return keys;
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.out.println("FAILED: " + what);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,307 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Feeds frames to a PeerConnection from a local socket and checks which
+ * reach the torrent.  Valid frames must arrive whole however the bytes are
+ * split up.  A frame too short for its type, or longer than any message
+ * could be, must be rejected: nothing from it or after it is passed on and
+ * the peer is dropped for good.  A frame cut off by a closed socket is not
+ * the peer's fault, so nothing from it is passed on but the connection is
+ * made again.  Runs with the selector and in blocking mode.  Also checks
+ * that PieceStorage refuses blocks outside their piece.  Exits with status
+ * 1 if anything is wrong.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class FrameCheck {
+
+	private static final int PIECE_SIZE = 64 * 1024;
+	// The largest length prefix PeerConnection can take: its read buffer less the prefix itself.
+	private static final int MAX_LENGTH = (2 << 14) - 4;
+
+	private static final List<String> received = new ArrayList<String>();
+	private static final AtomicInteger dying = new AtomicInteger();
+	private static byte[] block = new byte[100];
+
+	public static void main(String[] args) throws Exception {
+		byte[] data = new byte[PIECE_SIZE * 4 - 1000];
+		new Random(352).nextBytes(data);
+		new Random(353).nextBytes(block);
+		String path = SyntheticTorrent.file(data);
+		Torrent torrent = new Torrent(SyntheticTorrent.info(data, PIECE_SIZE), path) {
+			@Override
+			public void recvMessage(PeerMessage message) {
+				String what = message.getType().toString();
+				if (message.getType() == PeerMessage.PeerMessageType.Piece) {
+					byte[] got = new byte[message.getBytes().remaining()];
+					message.getBytes().duplicate().get(got);
+					what += Arrays.equals(got, block) ? "" : " with the wrong block";
+				}
+				synchronized (received) {
+					received.add(what);
+				}
+			}
+
+			@Override
+			public void peerDying(PeerId peerId) {
+				dying.incrementAndGet();
+			}
+		};
+
+		PeerSelector ps = new PeerSelector();
+		Thread selectorThread = new Thread(ps, "Selector");
+		selectorThread.start();
+		for (PeerSelector mode : new PeerSelector[]{ps, null}) {
+			String name = mode != null ? "selector" : "blocking";
+			ByteArrayOutputStream valid = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(valid);
+			have(out, 3);
+			frame(out, 13, 6, 1, 0, 16384);
+			out.writeInt(0); // Keepalive
+			frame(out, 9 + block.length, 7, 2, 16384);
+			out.write(block);
+			out.writeInt(3);
+			out.write(5);
+			out.writeShort(0xf0f0);
+			frame(out, 13, 8, 1, 0, 16384);
+			accepted(torrent, mode, name + ", valid frames one byte at a time", valid.toByteArray(), true,
+					"Have", "Request", "Piece", "Bitfield", "Cancel");
+
+			ByteArrayOutputStream largest = new ByteArrayOutputStream();
+			out = new DataOutputStream(largest);
+			out.writeInt(MAX_LENGTH);
+			out.write(5);
+			out.write(new byte[MAX_LENGTH - 1]);
+			accepted(torrent, mode, name + ", the largest frame", largest.toByteArray(), false, "Bitfield");
+
+			// Each type's length prefix one short of its shortest message.
+			rejected(torrent, mode, name + ", truncated Have", 4, 4);
+			rejected(torrent, mode, name + ", truncated Request", 12, 6);
+			rejected(torrent, mode, name + ", Piece without a block", 9, 7);
+			rejected(torrent, mode, name + ", truncated Cancel", 12, 8);
+			rejected(torrent, mode, name + ", frame one byte too long", MAX_LENGTH + 1, 7);
+			rejected(torrent, mode, name + ", frame of 2 GB", Integer.MAX_VALUE, 7);
+			rejected(torrent, mode, name + ", negative length", -1, 7);
+
+			cutOff(torrent, mode, name + ", frame cut off by a closed socket");
+		}
+		ps.shutdown();
+		selectorThread.join();
+
+		PieceStorage storage = new PieceStorage(path, data.length, PIECE_SIZE);
+		byte[] slice = new byte[Piece.SLICE_SIZE];
+		outside(storage, 0, PIECE_SIZE, slice, "a block starting at the end of its piece");
+		outside(storage, 0, PIECE_SIZE - 100, slice, "a block running into the next piece");
+		outside(storage, 3, PIECE_SIZE - 1000 - 100, slice, "a block running past the end of the file");
+		outside(storage, -1, 0, slice, "a block of piece -1");
+		outside(storage, 0, -16384, slice, "a block at a negative offset");
+		storage.writeBlock(3, PIECE_SIZE - 1000 - 100, ByteBuffer.wrap(slice, 0, 100));
+		storage.close();
+		System.out.println("ok");
+		System.exit(0);
+	}
+
+	/**
+	 * Sends a valid Have, a bad frame and another Have, and checks that only
+	 * the first Have gets through and the peer is dropped for good.
+	 */
+	private static void rejected(Torrent torrent, PeerSelector ps, String what, int length, int type) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		have(out, 7);
+		out.writeInt(length);
+		out.write(type);
+		out.write(new byte[Math.max(0, Math.min(length, MAX_LENGTH + 1) - 1)]);
+		have(out, 8);
+
+		Connection c = new Connection(torrent, ps);
+		try {
+			c.out.write(bytes.toByteArray());
+		} catch (IOException e) {
+			// Dropped before it had all been sent.
+		}
+		c.socket.setSoTimeout(5000);
+		try {
+			check(c.in.read() == -1, what + ": nothing is sent back");
+		} catch (IOException e) {
+			// Reset rather than closed, which is just as good.
+		}
+		check(waitFor(1, 2), what + ": the peer is dropped");
+		expect(what, "Handshake", "Have");
+		c.server.setSoTimeout(1000);
+		try {
+			c.server.accept();
+			check(false, what + ": the peer is not connected to again");
+		} catch (SocketTimeoutException e) {
+			// Given up on, as it should be.
+		}
+		c.close();
+		System.out.println(what + ": rejected");
+	}
+
+	/**
+	 * Sends frames, possibly a byte at a time, and checks that exactly the
+	 * given messages get through and the connection stays up.
+	 */
+	private static void accepted(Torrent torrent, PeerSelector ps, String what, byte[] bytes, boolean slowly, String... expected)
+			throws Exception {
+		Connection c = new Connection(torrent, ps);
+		c.socket.setTcpNoDelay(true);
+		if (slowly) {
+			for (byte b : bytes) {
+				c.out.write(b);
+				c.out.flush();
+			}
+		} else {
+			c.out.write(bytes);
+		}
+		check(waitFor(0, expected.length + 1), what + ": every message gets through");
+		c.socket.setSoTimeout(300);
+		try {
+			c.in.read();
+			check(false, what + ": the connection stays up");
+		} catch (SocketTimeoutException e) {
+			// Still up.
+		}
+		String[] all = new String[expected.length + 1];
+		all[0] = "Handshake";
+		System.arraycopy(expected, 0, all, 1, expected.length);
+		expect(what, all);
+		check(dying.get() == 0, what + ": the peer is not dropped");
+		c.close();
+		System.out.println(what + ": accepted");
+	}
+
+	/**
+	 * Sends a Have and half a Piece, then closes the socket.  The Have gets
+	 * through, the half Piece does not, and the peer is connected to again.
+	 */
+	private static void cutOff(Torrent torrent, PeerSelector ps, String what) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		have(out, 5);
+		frame(out, 9 + block.length, 7, 2, 0);
+		out.write(block, 0, block.length / 2);
+
+		Connection c = new Connection(torrent, ps);
+		c.out.write(bytes.toByteArray());
+		c.out.flush();
+		c.socket.close();
+		check(waitFor(1, 2), what + ": the connection is noticed to be gone");
+		c.server.setSoTimeout(5000);
+		Socket again = c.server.accept();
+		expect(what, "Handshake", "Have");
+		c.close();
+		again.close();
+		System.out.println(what + ": connected again");
+	}
+
+	/**
+	 * A PeerConnection to a local server socket, with the handshake sent.
+	 */
+	private static class Connection {
+		final ServerSocket server;
+		final PeerConnection pc;
+		final Thread thread;
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+
+		Connection(Torrent torrent, PeerSelector ps) throws IOException {
+			synchronized (received) {
+				received.clear();
+			}
+			dying.set(0);
+			server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			pc = new PeerConnection(torrent, ps, "127.0.0.1", server.getLocalPort(), PeerId.fromAddress(ByteBuffer.allocate(6)));
+			if (ps != null) {
+				ps.register(pc);
+				thread = null;
+			} else {
+				thread = new Thread(pc, "Peer");
+				thread.start();
+			}
+			socket = server.accept();
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			byte[] handshake = new byte[68];
+			handshake[0] = 19;
+			System.arraycopy(PeerConnection.PROTOCOL_HEADER, 0, handshake, 1, 19);
+			out.write(handshake);
+		}
+
+		void close() throws Exception {
+			pc.shutdown();
+			if (thread != null)
+				thread.join();
+			socket.close();
+			server.close();
+		}
+	}
+
+	private static void have(DataOutputStream out, int index) throws IOException {
+		out.writeInt(5);
+		out.write(4);
+		out.writeInt(index);
+	}
+
+	private static void frame(DataOutputStream out, int length, int type, int... ints) throws IOException {
+		out.writeInt(length);
+		out.write(type);
+		for (int i : ints)
+			out.writeInt(i);
+	}
+
+	/**
+	 * Waits up to two seconds for the peer to be reported dying this many
+	 * times and this many messages to have arrived.
+	 */
+	private static boolean waitFor(int deaths, int messages) throws InterruptedException {
+		for (int i = 0; i < 200; ++i) {
+			synchronized (received) {
+				if (dying.get() >= deaths && received.size() >= messages)
+					return true;
+			}
+			Thread.sleep(10);
+		}
+		return false;
+	}
+
+	private static void expect(String what, String... expected) {
+		synchronized (received) {
+			check(received.equals(Arrays.asList(expected)), what + ": got " + received + " instead of " + Arrays.asList(expected));
+		}
+	}
+
+	private static void outside(PieceStorage storage, int index, int begin, byte[] slice, String what) {
+		try {
+			storage.writeBlock(index, begin, ByteBuffer.wrap(slice));
+			check(false, "PieceStorage refuses " + what);
+		} catch (IOException e) {
+			// Refused.
+		}
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.out.println("FAILED: " + what);
+			System.exit(1);
+		}
+	}
+}
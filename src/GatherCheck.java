@@ -0,0 +1,209 @@
+import edu.rutgers.cs.cs352.bt.TorrentInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that batching messages into gathering writes puts the same bytes
+ * on the wire as writing each message on its own would.  Queues bursts of
+ * mixed messages on a PeerConnection talking to a local socket, some before
+ * it connects and some while it is up, including Piece messages sent from
+ * memory and from the data file, and compares what arrives with each
+ * message encoded by hand.  Runs with the selector and in blocking mode,
+ * and reports how many messages went out per write.  Exits with status 1
+ * if the bytes differ or some never arrive.
+ *
+ * Usage: java GatherCheck [messages per burst]
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class GatherCheck {
+
+	private static final int PIECE_SIZE = 64 * 1024;
+	private static final int PIECES = 16;
+
+	private static byte[] data;
+	private static PieceStorage storage;
+
+	public static void main(String[] args) throws Exception {
+		int burst = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		data = new byte[PIECE_SIZE * PIECES - 1000];
+		new Random(352).nextBytes(data);
+		TorrentInfo ti = SyntheticTorrent.info(data, PIECE_SIZE);
+		String path = SyntheticTorrent.file(data);
+		Torrent torrent = new Torrent(ti, path);
+		storage = new PieceStorage(path, data.length, PIECE_SIZE);
+
+		run(torrent, new PeerSelector(), burst);
+		run(torrent, null, burst);
+		System.out.println("ok");
+		System.exit(0);
+	}
+
+	/**
+	 * @param ps The selector, or null for blocking mode
+	 */
+	private static void run(Torrent torrent, PeerSelector ps, int burst) throws Exception {
+		String mode = ps != null ? "selector" : "blocking";
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		PeerConnection pc = new PeerConnection(torrent, ps, "127.0.0.1", server.getLocalPort(), PeerId.fromAddress(ByteBuffer.allocate(6)));
+		Random random = new Random(352);
+
+		// Queued before the connection is up, so the first writes find a full queue.
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(expected);
+		byte[] infoHash = new byte[20], peerId = new byte[20];
+		random.nextBytes(infoHash);
+		random.nextBytes(peerId);
+		pc.sendHandshake(ByteBuffer.wrap(infoHash), ByteBuffer.wrap(peerId));
+		out.write(19);
+		out.write(PeerConnection.PROTOCOL_HEADER);
+		out.write(new byte[8]);
+		out.write(infoHash);
+		out.write(peerId);
+		byte[] bitfield = new byte[(PIECES + 7) / 8];
+		random.nextBytes(bitfield);
+		pc.sendBitfield(ByteBuffer.wrap(bitfield));
+		out.writeInt(1 + bitfield.length);
+		out.write(5);
+		out.write(bitfield);
+		int sent = 2 + queue(pc, out, random, burst);
+
+		Thread peerThread = null, selectorThread = null;
+		if (ps != null) {
+			selectorThread = new Thread(ps, "Selector");
+			selectorThread.start();
+			ps.register(pc);
+		} else {
+			peerThread = new Thread(pc, "Peer");
+			peerThread.start();
+		}
+		Socket socket = server.accept();
+		socket.setSoTimeout(10000);
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		compare(in, expected.toByteArray(), mode + ", queued before connecting");
+
+		// Queued while the connection is up and the writer may be busy.
+		expected.reset();
+		sent += queue(pc, out, random, burst);
+		compare(in, expected.toByteArray(), mode + ", queued while connected");
+
+		// Let the last write be counted.
+		for (int i = 0; i < 100 && pc.getMessagesSent() < sent; ++i)
+			Thread.sleep(10);
+		check(pc.getMessagesSent() == sent, mode + ": every message is counted as sent");
+		System.out.println(mode + ": " + sent + " messages in " + pc.getWrites() + " writes, "
+				+ String.format("%.1f", (double) sent / pc.getWrites()) + " messages per write");
+
+		pc.shutdown();
+		if (ps != null) {
+			ps.shutdown();
+			selectorThread.join();
+		} else {
+			peerThread.join();
+		}
+		socket.close();
+		server.close();
+	}
+
+	/**
+	 * Queues a burst of messages, and writes what each should look like on
+	 * the wire to out.
+	 *
+	 * @return Number of messages queued
+	 */
+	private static int queue(PeerConnection pc, DataOutputStream out, Random random, int count) throws IOException {
+		for (int i = 0; i < count; ++i) {
+			int index = random.nextInt(PIECES);
+			int size = Math.min(PIECE_SIZE, data.length - index * PIECE_SIZE);
+			int begin = random.nextInt(size / Piece.SLICE_SIZE) * Piece.SLICE_SIZE;
+			int length = Math.min(Piece.SLICE_SIZE, size - begin);
+			switch (random.nextInt(10)) {
+			case 0:
+				pc.sendInterested();
+				out.writeInt(1);
+				out.write(2);
+				break;
+			case 1:
+				if (random.nextBoolean()) {
+					pc.sendChoke();
+					out.writeInt(1);
+					out.write(0);
+				} else {
+					pc.sendUnchoke();
+					out.writeInt(1);
+					out.write(1);
+				}
+				break;
+			case 2:
+			case 3:
+				pc.sendRequest(index, begin, length);
+				header(out, 13, 6, index, begin);
+				out.writeInt(length);
+				break;
+			case 4:
+				pc.sendCancel(index, begin, length);
+				header(out, 13, 8, index, begin);
+				out.writeInt(length);
+				break;
+			case 5:
+				pc.sendPiece(index, begin, ByteBuffer.wrap(data, index * PIECE_SIZE + begin, length).slice());
+				header(out, 9 + length, 7, index, begin);
+				out.write(data, index * PIECE_SIZE + begin, length);
+				break;
+			case 6:
+				pc.sendPiece(index, begin, length, storage);
+				header(out, 9 + length, 7, index, begin);
+				out.write(data, index * PIECE_SIZE + begin, length);
+				break;
+			default:
+				pc.sendHave(index);
+				out.writeInt(5);
+				out.write(4);
+				out.writeInt(index);
+			}
+		}
+		return count;
+	}
+
+	private static void header(DataOutputStream out, int length, int id, int index, int begin) throws IOException {
+		out.writeInt(length);
+		out.write(id);
+		out.writeInt(index);
+		out.writeInt(begin);
+	}
+
+	private static void compare(DataInputStream in, byte[] expected, String what) throws IOException {
+		byte[] got = new byte[expected.length];
+		try {
+			in.readFully(got);
+		} catch (SocketTimeoutException e) {
+			check(false, what + ": fewer bytes arrive than one write per message sends");
+		}
+		if (!Arrays.equals(got, expected)) {
+			int at = 0;
+			while (got[at] == expected[at])
+				++at;
+			check(false, what + ": the bytes differ from one write per message, first at byte " + at + " of " + expected.length);
+		}
+		check(in.available() == 0, what + ": nothing more than the messages is sent");
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.out.println("FAILED: " + what);
+			System.exit(1);
+		}
+	}
+}
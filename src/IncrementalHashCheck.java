@@ -0,0 +1,141 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Checks the running hash of a piece against a one-shot SHA-1 of the same
+ * bytes.  Slices are stored and hashed the way Torrent.handlePiece does it,
+ * arriving in order, in reverse, shuffled, with the first one last and with
+ * duplicates as in endgame; pieces are full size or short like the last
+ * one.  A piece whose slices all arrived in order must be hashed already,
+ * any other must be finished by the PieceHasher, and both ways must agree
+ * with the one-shot hash, for good pieces and damaged ones.  Also times how
+ * long after the last slice each way has its answer.  Exits with status 1
+ * if anything is wrong.
+ *
+ * Usage: java IncrementalHashCheck [pieces]
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class IncrementalHashCheck {
+
+	private static final int PIECE_SIZE = 256 * 1024;
+	private static final String[] ORDERS = {"in order", "reversed", "shuffled", "first last", "duplicates"};
+
+	private static PieceStorage storage;
+	private static PieceHasher hasher;
+	private static final Semaphore results = new Semaphore(0);
+	private static final Random random = new Random(352);
+
+	public static void main(String[] args) throws IOException, InterruptedException, NoSuchAlgorithmException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		// Every piece full size but the last, which ends mid-slice.
+		long length = (long) (count - 1) * PIECE_SIZE + 100000;
+		File file = File.createTempFile("hash", ".bin");
+		file.deleteOnExit();
+		storage = new PieceStorage(file.getPath(), length, PIECE_SIZE);
+		hasher = new PieceHasher(storage, new Runnable() {
+			@Override
+			public void run() {
+				results.release();
+			}
+		});
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+
+		long[] latency = new long[ORDERS.length];
+		int[] timed = new int[ORDERS.length];
+		long oneShot = 0;
+		for (int i = 0; i < count; ++i) {
+			int size = (int) Math.min(PIECE_SIZE, length - (long) i * PIECE_SIZE);
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			md.reset();
+			byte[] hash = md.digest(data);
+			boolean damaged = i % 10 == 9;
+			if (damaged)
+				hash[19] ^= 1;
+			int order = i % ORDERS.length;
+			Piece piece = new Piece(i, size, ByteBuffer.wrap(hash), null, null);
+
+			long t = receive(piece, data, order);
+			boolean valid;
+			if (piece.isHashed()) {
+				valid = Arrays.equals(piece.getDigest().digest(), piece.getHash());
+			} else {
+				check(order != 0 && order != 4, ORDERS[order] + ": a piece that arrived in order is hashed when its last slice lands");
+				hasher.submit(piece);
+				results.acquire();
+				PieceHasher.Result result = hasher.poll();
+				check(result != null && result.piece == piece, "the hasher hands back the piece it was given");
+				valid = result.valid;
+			}
+			latency[order] += System.nanoTime() - t;
+			timed[order]++;
+			check(valid != damaged, ORDERS[order] + ": piece " + i + (damaged ? " is damaged" : " is good") + " and must be found so");
+
+			// What the run loop did before: the whole piece hashed in one go once it is complete.
+			t = System.nanoTime();
+			boolean oneShotValid = Arrays.equals(storage.digest(i, size, md), piece.getHash());
+			oneShot += System.nanoTime() - t;
+			check(oneShotValid == valid, ORDERS[order] + ": piece " + i + " gets the same answer as a one-shot hash");
+			piece.resetHash();
+		}
+		hasher.shutdown();
+		storage.close();
+
+		System.out.println(count + " pieces of " + PIECE_SIZE / 1024 + " KB, time from the last slice to the answer:");
+		System.out.println("one-shot hash:       " + oneShot / count / 1000 + " us");
+		for (int o = 0; o < ORDERS.length; ++o)
+			System.out.println(String.format("%-20s %d us", ORDERS[o] + ":", latency[o] / timed[o] / 1000));
+		System.out.println("ok");
+	}
+
+	/**
+	 * Stores a piece's slices and feeds them to its running hash in the
+	 * given order, as Torrent.handlePiece does.
+	 *
+	 * @return System.nanoTime() after the last slice was stored
+	 */
+	private static long receive(Piece piece, byte[] data, int order) throws IOException {
+		int slices = (piece.getSize() + Piece.SLICE_SIZE - 1) / Piece.SLICE_SIZE;
+		ArrayList<Integer> arrivals = new ArrayList<Integer>();
+		for (int s = 0; s < slices; ++s)
+			arrivals.add(s);
+		if (ORDERS[order].equals("reversed")) {
+			Collections.reverse(arrivals);
+		} else if (ORDERS[order].equals("shuffled")) {
+			Collections.shuffle(arrivals, random);
+		} else if (ORDERS[order].equals("first last")) {
+			arrivals.add(arrivals.remove(0));
+		} else if (ORDERS[order].equals("duplicates")) {
+			// Endgame: a second peer's copy of a slice lands after the first.
+			for (int s = slices - 1; s >= 0; s -= 3)
+				arrivals.add(s + 1, s);
+		}
+		for (int s : arrivals) {
+			int begin = piece.getBeginOfSlice(s);
+			ByteBuffer block = ByteBuffer.wrap(data, begin, piece.getLengthOfSlice(s)).slice();
+			storage.writeBlock(piece.getIndex(), begin, block);
+			block.position(0);
+			piece.hashSlice(s, block);
+			piece.putSlice(s);
+		}
+		return System.nanoTime();
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.out.println("FAILED: " + what);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets that double in width: bucket 0 holds 0 ms,
+ * bucket i holds 2^(i-1) to 2^i - 1 ms and the last bucket holds everything
+ * larger.  Recording is a few atomic increments, so the I/O and run loop
+ * threads never wait on whoever is reading it.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 20;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+
+	/**
+	 * @param ms A latency in milliseconds
+	 */
+	public void record(long ms) {
+		int bucket = ms <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+		counts.incrementAndGet(bucket);
+		count.incrementAndGet();
+		sum.addAndGet(Math.max(ms, 0));
+	}
+
+	/**
+	 * @return Number of latencies recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return Average latency in milliseconds, 0 if there are none
+	 */
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * @param fraction Between 0 and 1, e.g. 0.9 for the 90th percentile
+	 * @return Upper bound in milliseconds of the bucket holding that percentile,
+	 *         Long.MAX_VALUE if it is in the last bucket, 0 if there are none
+	 */
+	public long getPercentile(double fraction) {
+		long n = 0;
+		long[] snapshot = getCounts();
+		for (long c : snapshot)
+			n += c;
+		long target = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += snapshot[i];
+			if (seen >= target && seen > 0)
+				return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return A copy of the bucket counts
+	 */
+	public long[] getCounts() {
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; ++i)
+			snapshot[i] = counts.get(i);
+		return snapshot;
+	}
+
+	@Override
+	public String toString() {
+		return "mean " + getMean() + " ms, p50 " + bound(0.5) + ", p90 " + bound(0.9) + ", p99 " + bound(0.99);
+	}
+
+	private String bound(double fraction) {
+		long p = getPercentile(fraction);
+		return p == Long.MAX_VALUE ? ">" + ((1L << (BUCKETS - 2)) - 1) + " ms" : "<=" + p + " ms";
+	}
+}
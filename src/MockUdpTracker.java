@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A UDP tracker (BEP 15) on the loopback interface, for trying
+ * UdpTrackerConnection without the internet.  It hands out connection ids,
+ * answers announces with a fixed compact peer list and scrapes with fixed
+ * counts, and can be told to drop requests or refuse them.
+ *
+ * Run on its own, it checks UdpTrackerConnection against itself:
+ * java MockUdpTracker
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class MockUdpTracker implements Runnable {
+
+	private static final long PROTOCOL_ID = 0x41727101980L;
+	private static final int CONNECT = 0, ANNOUNCE = 1, SCRAPE = 2, ERROR = 3;
+
+	public final int interval = 1800;
+	public final int seeders = 5, completed = 7, leechers = 9;
+
+	private DatagramSocket socket;
+	private byte[] peers;
+	private HashSet<Long> connectionIds = new HashSet<Long>();
+	private long nextId = 1000;
+
+	private final AtomicInteger drop = new AtomicInteger();
+	private volatile String error = null;
+	private final AtomicInteger connects = new AtomicInteger();
+	private final AtomicInteger announces = new AtomicInteger();
+	private final AtomicInteger scrapes = new AtomicInteger();
+	private volatile int lastEvent = -1;
+
+	/**
+	 * Binds to a free port on the loopback interface.  Call run() on a
+	 * thread of its own to start answering.
+	 *
+	 * @param peers Compact peer list to answer announces with
+	 * @throws SocketException
+	 */
+	public MockUdpTracker(byte[] peers) throws SocketException {
+		this.peers = peers;
+		this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+	}
+
+	/**
+	 * @return The URL to announce to
+	 */
+	public URL getURL() throws IOException {
+		String url = "udp://127.0.0.1:" + socket.getLocalPort() + "/announce";
+		return new URL(null, url, new URLStreamHandler() {
+			@Override
+			protected URLConnection openConnection(URL u) throws IOException {
+				throw new IOException("udp:// URLs cannot be opened: " + u);
+			}
+		});
+	}
+
+	/**
+	 * @param n Number of requests to ignore, starting with the next one
+	 */
+	public void dropNext(int n) {
+		drop.set(n);
+	}
+
+	/**
+	 * @param message Error to answer every request with, or null to answer normally
+	 */
+	public void failWith(String message) {
+		error = message;
+	}
+
+	public int getConnects() {
+		return connects.get();
+	}
+
+	/**
+	 * @return Announces received, including dropped ones
+	 */
+	public int getAnnounces() {
+		return announces.get();
+	}
+
+	public int getScrapes() {
+		return scrapes.get();
+	}
+
+	/**
+	 * @return Event of the last announce: 0 none, 1 completed, 2 started, 3 stopped
+	 */
+	public int getLastEvent() {
+		return lastEvent;
+	}
+
+	@Override
+	public void run() {
+		byte[] buf = new byte[2048];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		while (!socket.isClosed()) {
+			packet.setLength(buf.length);
+			try {
+				socket.receive(packet);
+			} catch (IOException e) {
+				return; // Closed by shutdown().
+			}
+			ByteBuffer request = ByteBuffer.wrap(buf, 0, packet.getLength());
+			if (request.remaining() < 16)
+				continue;
+			long connection = request.getLong();
+			int action = request.getInt();
+			int transaction = request.getInt();
+			if (action == CONNECT)
+				connects.incrementAndGet();
+			else if (action == ANNOUNCE)
+				announces.incrementAndGet();
+			else if (action == SCRAPE)
+				scrapes.incrementAndGet();
+			if (drop.get() > 0 && drop.getAndDecrement() > 0)
+				continue;
+
+			ByteBuffer response = ByteBuffer.allocate(20 + peers.length);
+			if (error != null) {
+				response.putInt(ERROR).putInt(transaction).put(error.getBytes());
+			} else if (action == CONNECT && connection == PROTOCOL_ID) {
+				long id = nextId++;
+				connectionIds.add(id);
+				response.putInt(CONNECT).putInt(transaction).putLong(id);
+			} else if (!connectionIds.contains(connection)) {
+				response.putInt(ERROR).putInt(transaction).put("Unknown connection id".getBytes());
+			} else if (action == ANNOUNCE && request.remaining() >= 82) {
+				lastEvent = request.getInt(16 + 20 + 20 + 8 + 8 + 8);
+				response.putInt(ANNOUNCE).putInt(transaction).putInt(interval).putInt(leechers).putInt(seeders).put(peers);
+			} else if (action == SCRAPE && request.remaining() >= 20) {
+				response.putInt(SCRAPE).putInt(transaction).putInt(seeders).putInt(completed).putInt(leechers);
+			} else {
+				response.putInt(ERROR).putInt(transaction).put("Bad request".getBytes());
+			}
+			try {
+				socket.send(new DatagramPacket(response.array(), response.position(), packet.getSocketAddress()));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void shutdown() {
+		socket.close();
+	}
+
+	/**
+	 * Checks UdpTrackerConnection against a MockUdpTracker: announces,
+	 * connection id reuse, retransmission, scrape, errors, interrupting a
+	 * request and the short stop.  Exits with status 1 if anything is wrong.
+	 */
+	public static void main(String[] args) throws Exception {
+		// Before UdpTrackerConnection is loaded, so that retries take a second rather than fifteen.
+		System.setProperty("rubt.udpTimeout", "1");
+		byte[] peers = new byte[] {127, 0, 0, 1, 0x1a, (byte) 0xe1, 10, 0, 0, 2, 0x1a, (byte) 0xe2};
+		MockUdpTracker mock = new MockUdpTracker(peers);
+		new Thread(mock, "Mock tracker").start();
+		final ByteBuffer infoHash = ByteBuffer.wrap(new byte[20]);
+		final String peerId = "EWOKAAAAAAAAAAAAAAAA";
+		final UdpTrackerConnection tracker = new UdpTrackerConnection(mock.getURL());
+		try {
+			HashMap<ByteBuffer,Object> res = tracker.start(peerId, 6881, 0, 0, 100, infoHash);
+			PeerList list = TrackerConnection.getPeers(res);
+			check(list.size() == 2 && list.getHost(1).equals("10.0.0.2") && list.getPort(1) == 6882, "start returns the peers");
+			check(Integer.valueOf(mock.interval).equals(res.get(TrackerConnection.INTERVAL)), "start returns the interval");
+			check(mock.getLastEvent() == 2, "start sends the started event");
+
+			tracker.announce(peerId, 6881, 0, 50, 50, infoHash);
+			check(mock.getConnects() == 1, "the connection id is reused");
+
+			mock.dropNext(1);
+			long t = System.currentTimeMillis();
+			int before = mock.getAnnounces();
+			tracker.announce(peerId, 6881, 0, 50, 50, infoHash);
+			check(mock.getAnnounces() == before + 2 && System.currentTimeMillis() - t >= 900, "a dropped announce is sent again after the timeout");
+
+			HashMap<?, ?> files = (HashMap<?, ?>) tracker.scrape(infoHash).get(TrackerConnection.FILES);
+			HashMap<?, ?> stats = (HashMap<?, ?>) files.get(infoHash);
+			check(stats != null && Integer.valueOf(mock.seeders).equals(stats.get(TrackerConnection.COMPLETE))
+					&& Integer.valueOf(mock.completed).equals(stats.get(TrackerConnection.DOWNLOADED))
+					&& Integer.valueOf(mock.leechers).equals(stats.get(TrackerConnection.INCOMPLETE)), "scrape returns the counts");
+
+			mock.failWith("go away");
+			String message = null;
+			try {
+				tracker.announce(peerId, 6881, 0, 50, 50, infoHash);
+			} catch (IOException e) {
+				message = e.getMessage();
+			}
+			check(message != null && message.contains("go away"), "a tracker error is thrown with its message");
+			mock.failWith(null);
+
+			// A dead tracker: an interrupt has to end the wait at once.
+			mock.dropNext(Integer.MAX_VALUE);
+			final IOException[] thrown = new IOException[1];
+			Thread announcer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						tracker.announce(peerId, 6881, 0, 50, 50, infoHash);
+					} catch (IOException e) {
+						thrown[0] = e;
+					}
+				}
+			});
+			announcer.start();
+			Thread.sleep(200);
+			t = System.currentTimeMillis();
+			announcer.interrupt();
+			announcer.join(5000);
+			check(!announcer.isAlive() && thrown[0] instanceof InterruptedIOException && System.currentTimeMillis() - t < 1000,
+					"an interrupt ends a request");
+
+			t = System.currentTimeMillis();
+			thrown[0] = null;
+			try {
+				tracker.stop(peerId, 6881, 0, 100, 0, infoHash);
+			} catch (IOException e) {
+				thrown[0] = e;
+			}
+			check(thrown[0] instanceof SocketTimeoutException && System.currentTimeMillis() - t < 2 * UdpTrackerConnection.STOP_TIMEOUT + 500,
+					"stop gives up after one short try");
+		} finally {
+			mock.shutdown();
+		}
+		System.out.println("ok");
+	}
+
+	private static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok:     " : "FAILED: ") + what);
+		if (!ok)
+			System.exit(1);
+	}
+}
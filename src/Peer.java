@@ -1,5 +1,7 @@
-import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Iterator;
 
 /**
  * A connection to a peer that is responsible for downloading
@@ -11,23 +13,56 @@ import java.util.BitSet;
  */
 public class Peer {
 
+	// Bounds on how many requests we keep outstanding with one peer.
+	public static final int MIN_REQUESTS = Integer.getInteger("rubt.minRequests", 5);
+	public static final int MAX_REQUESTS = Integer.getInteger("rubt.maxRequests", 250);
+	// A peer that sends nothing we asked for in this long is snubbing us.
+	public static final long SNUB_TIMEOUT = Integer.getInteger("rubt.snubTimeout", 60) * 1000L;
+
+	/**
+	 * A block we have asked this peer for and not received yet.
+	 */
+	public static class Request {
+		public final int index;
+		public final int begin;
+		public final int length;
+		public final long sent;
+
+		public Request(int index, int begin, int length, long sent) {
+			this.index = index;
+			this.begin = begin;
+			this.length = length;
+			this.sent = sent;
+		}
+	}
+
 	/*
 	 * These are public because there's no reason for them not to be.
 	 * All that ever gets done is get and set on them and they're primitives.
+	 * Volatile, since whatever is looking at the registry may not be the run loop.
 	 */
-	public boolean handshook = false;
-	public boolean interested = false;
-	public boolean weHaveInterest = false;
-	public boolean choked = true;
-	public boolean choking = true;
-	public int outstandingRequests = 0;
+	public volatile boolean handshook = false;
+	public volatile boolean interested = false;
+	public volatile boolean weHaveInterest = false;
+	public volatile boolean choked = true;
+	public volatile boolean choking = true;
 
 	private PeerConnection peerConnection;
-	private ByteBuffer peerId;
+	private PeerId peerId;
 	private BitSet availablePieces = new BitSet();
 
-	public Peer(ByteBuffer peerId, PeerConnection peerConnection) {
-		this.peerId = peerId.duplicate();
+	private ArrayDeque<Request> requests = new ArrayDeque<Request>();
+	private volatile long inFlightBytes = 0;
+	private RateEstimator downloadRate = new RateEstimator();
+	private RateEstimator uploadRate = new RateEstimator();
+	private volatile long minRtt = -1;
+	private LatencyHistogram rtt = new LatencyHistogram();
+	// Mirrors requests.size() and the time we last heard back, for readers on other threads.
+	private volatile int outstanding = 0;
+	private volatile long lastProgress = 0;
+
+	public Peer(PeerId peerId, PeerConnection peerConnection) {
+		this.peerId = peerId;
 		this.peerConnection = peerConnection;
 	}
 
@@ -35,7 +70,7 @@ public class Peer {
 		this.availablePieces = availablePieces;
 	}
 
-	public ByteBuffer getPeerId() {
+	public PeerId getPeerId() {
 		return peerId;
 	}
 
@@ -65,5 +100,179 @@ public class Peer {
 			return false;
 		}
 	}
-}
 
+	/**
+	 * Records a request that has just been sent to this peer.
+	 *
+	 * @param index Index of the piece
+	 * @param begin Offset of the block within the piece
+	 * @param length Length of the block
+	 * @param now Current time in milliseconds
+	 */
+	public void requestSent(int index, int begin, int length, long now) {
+		if (requests.isEmpty())
+			lastProgress = now;
+		requests.add(new Request(index, begin, length, now));
+		outstanding = requests.size();
+		inFlightBytes += length;
+	}
+
+	/**
+	 * Records a block arriving from this peer and updates the bandwidth and
+	 * round trip estimates that the request depth is derived from.
+	 *
+	 * @param index Index of the piece
+	 * @param begin Offset of the block within the piece
+	 * @param length Length of the block
+	 * @param now Current time in milliseconds
+	 * @return The matching request, or null if we never asked for the block
+	 */
+	public Request requestDone(int index, int begin, int length, long now) {
+		downloadRate.add(length, now);
+		lastProgress = now;
+		for (Iterator<Request> it = requests.iterator(); it.hasNext(); ) {
+			Request r = it.next();
+			if (r.index == index && r.begin == begin) {
+				it.remove();
+				outstanding = requests.size();
+				inFlightBytes -= r.length;
+				long rtt = Math.max(now - r.sent, 1);
+				this.rtt.record(rtt);
+				// Slowly forget old minimums so a path that got slower is noticed.
+				if (minRtt < 0 || rtt < minRtt)
+					minRtt = rtt;
+				else
+					minRtt += (rtt - minRtt) / 64;
+				return r;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Forgets an outstanding request because we are about to cancel it.
+	 *
+	 * @param index Index of the piece
+	 * @param begin Offset of the block within the piece
+	 * @return Whether the request was outstanding
+	 */
+	public boolean cancelRequest(int index, int begin) {
+		for (Iterator<Request> it = requests.iterator(); it.hasNext(); ) {
+			Request r = it.next();
+			if (r.index == index && r.begin == begin) {
+				it.remove();
+				outstanding = requests.size();
+				inFlightBytes -= r.length;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets requests that were sent too long ago.  Their slices have timed
+	 * out in the Piece and may be asked of someone else, so they must stop
+	 * counting against this peer's request depth.
+	 *
+	 * @param sentBefore Requests sent before this time are forgotten
+	 * @return The forgotten requests, oldest first
+	 */
+	public ArrayList<Request> expireRequests(long sentBefore) {
+		ArrayList<Request> expired = new ArrayList<Request>();
+		// Requests are kept in the order they were sent.
+		while (!requests.isEmpty() && requests.peek().sent <= sentBefore) {
+			Request r = requests.poll();
+			inFlightBytes -= r.length;
+			expired.add(r);
+		}
+		outstanding = requests.size();
+		return expired;
+	}
+
+	/**
+	 * @param index Index of the piece
+	 * @param begin Offset of the block within the piece
+	 * @return Whether we are waiting on this peer for the block
+	 */
+	public boolean isRequested(int index, int begin) {
+		for (Request r : requests) {
+			if (r.index == index && r.begin == begin)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets all outstanding requests, e.g. because the peer choked us.
+	 */
+	public void clearRequests() {
+		requests.clear();
+		outstanding = 0;
+		inFlightBytes = 0;
+	}
+
+	/**
+	 * @return Number of blocks we are waiting on this peer for.  May be read from any thread.
+	 */
+	public int getOutstandingRequests() {
+		return outstanding;
+	}
+
+	/**
+	 * @return Times from requesting a block to receiving it, in milliseconds
+	 */
+	public LatencyHistogram getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * @param now Current time in milliseconds
+	 * @return Whether we have been waiting on this peer for SNUB_TIMEOUT without receiving a block
+	 */
+	public boolean isSnubbed(long now) {
+		return outstanding > 0 && now - lastProgress >= SNUB_TIMEOUT;
+	}
+
+	/**
+	 * @param now Current time in milliseconds
+	 * @return A one line summary of how this peer is doing
+	 */
+	public String getStats(long now) {
+		return peerConnection.getAddress() + ": down " + downloadRate.getRate(now) / 1024 + " KB/s, up "
+				+ uploadRate.getRate(now) / 1024 + " KB/s, " + outstanding + " of " + getRequestDepth() + " requests, "
+				+ inFlightBytes / 1024 + " KB in flight, rtt " + rtt
+				+ (choking ? "" : ", unchoked") + (choked ? ", choked us" : "") + (isSnubbed(now) ? ", SNUBBED" : "");
+	}
+
+	public long getInFlightBytes() {
+		return inFlightBytes;
+	}
+
+	public RateEstimator getDownloadRate() {
+		return downloadRate;
+	}
+
+	/**
+	 * @return Rate at which we are sending blocks to this peer
+	 */
+	public RateEstimator getUploadRate() {
+		return uploadRate;
+	}
+
+	/**
+	 * Number of requests to keep outstanding with this peer: twice the
+	 * bandwidth-delay product, in blocks, clamped to MIN_REQUESTS and
+	 * MAX_REQUESTS.  The delay is the lowest recent round trip time so that
+	 * queueing caused by our own requests does not inflate it, and the factor
+	 * of two lets the depth grow while the link has spare capacity.
+	 *
+	 * @return The current request depth
+	 */
+	public int getRequestDepth() {
+		if (minRtt < 0)
+			return MIN_REQUESTS;
+		long bdp = downloadRate.getRate(System.currentTimeMillis()) * minRtt / 1000;
+		long depth = 2 * bdp / Piece.SLICE_SIZE + 1;
+		return (int) Math.max(MIN_REQUESTS, Math.min(MAX_REQUESTS, depth));
+	}
+}
@@ -1,18 +1,24 @@
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Responsible for abstracting network communications with a Peer from
  * the rest of the application.  One is created for each Peer.  Messages
- * received are passed back to the main Torrent object.
+ * received are passed back to the main Torrent object.  Socket I/O either
+ * happens on the PeerSelector thread or, when there is no selector, with
+ * blocking reads and writes on threads of this connection's own (see
+ * VirtualThreads).  Other threads only ever queue messages.
  *
  * @author eddiezane
  * @author kaushal
@@ -31,128 +37,579 @@ public class PeerConnection implements Runnable {
 	private final byte[] BITFIELD = new byte[]{0, 0, 0, 0, 5};
 	private final byte[] REQUEST = new byte[]{0, 0, 0, 13, 6};
 	private final byte[] PIECE = new byte[]{0, 0, 0, 0, 7};
+	private final byte[] CANCEL = new byte[]{0, 0, 0, 13, 8};
 
 	private Torrent torrent;
-	private Socket sock;
+	private PeerSelector peerSelector;
+	private volatile SocketChannel channel;
+	private SelectionKey key;
 	private String ip;
 	private int port;
-	private boolean running = true;
-	private Timer keepaliveTimer;
+	private volatile boolean running = true;
+	private boolean connected = false;
+	// A keepalive goes out when nothing else has been queued for this long.
+	private static final long KEEPALIVE_INTERVAL = 120000;
+	// Blocking mode: how long a connect may take, and how often and how patiently to retry one that fails.
+	private static final int CONNECT_TIMEOUT = Integer.getInteger("rubt.connectTimeout", 10) * 1000;
+	private static final int CONNECT_RETRIES = 3;
+	private static final long RETRY_DELAY = 5000;
+	private volatile long lastQueued = System.currentTimeMillis();
 	private boolean handshakeDone = false;
-	private ByteBuffer peerId = null;
+	private PeerId peerId = null;
+	// Our handshake, sent again first thing whenever the connection is re-established.
+	private ByteBuffer handshake = null;
 
-	private ConcurrentLinkedQueue<ByteBuffer> messages = new ConcurrentLinkedQueue<ByteBuffer>();
-	private byte[] buffer = new byte[2<<14];
+	/**
+	 * A queued message: some bytes, optionally followed by a block that is
+	 * either already in memory or sent straight from the data file.
+	 */
+	private static class OutgoingMessage {
+		final ByteBuffer bytes;
+		final ByteBuffer body;
+		final PieceStorage storage;
+		long position;
+		long remaining;
+
+		OutgoingMessage(ByteBuffer bytes) {
+			this(bytes, null, null, 0, 0);
+		}
+
+		OutgoingMessage(ByteBuffer bytes, ByteBuffer body) {
+			this(bytes, body, null, 0, 0);
+		}
+
+		OutgoingMessage(ByteBuffer bytes, PieceStorage storage, long position, long remaining) {
+			this(bytes, null, storage, position, remaining);
+		}
+
+		private OutgoingMessage(ByteBuffer bytes, ByteBuffer body, PieceStorage storage, long position, long remaining) {
+			this.bytes = bytes;
+			this.body = body;
+			this.storage = storage;
+			this.position = position;
+			this.remaining = remaining;
+		}
+
+		/**
+		 * Sends some of the part of the message that comes from the data file.
+		 *
+		 * @return Number of bytes sent, 0 if the channel is full
+		 */
+		long transfer(SocketChannel channel) throws IOException {
+			long n = storage.transferTo(position, remaining, channel);
+			if (n == 0 && position >= storage.size())
+				throw new EOFException("Block at " + position + " is past the end of the data file");
+			position += n;
+			remaining -= n;
+			return n;
+		}
+	}
+
+	// Queued by the reader in blocking mode to tell the writer that the socket is done with.
+	// The writer is never interrupted: that would close the data file's channel under
+	// transferTo, and with it the file for the whole torrent.
+	private static final OutgoingMessage STOP = new OutgoingMessage(ByteBuffer.allocate(0));
+
+	// Only messages nobody has started writing yet are in the queue, so other threads may remove them.
+	// Replaced rather than cleared on reconnect, see reset().
+	private volatile LinkedBlockingQueue<OutgoingMessage> messages = new LinkedBlockingQueue<OutgoingMessage>();
+	// Messages taken off the queue to go out in one gathering write.  Only a message
+	// sent from the data file can end a batch, since its block follows the write.
+	// Batches are also kept to about MAX_BATCH_BYTES, so rate limiting stays smooth.
+	private static final int MAX_BATCH = 64;
+	private static final int MAX_BATCH_BYTES = 1<<16;
+	private int batchBytes = 0;
+	private ArrayList<OutgoingMessage> batch = new ArrayList<OutgoingMessage>();
+	private ByteBuffer[] gather = new ByteBuffer[2*MAX_BATCH];
+	private int gatherCount = 0;
+	private int gatherOffset = 0;
+	private volatile long messagesSent = 0;
+	private RateLimiter upload;
+	private RateLimiter download;
+	// Set while the selector has stopped watching a direction because of rate limiting.
+	private boolean readPaused = false;
+	private boolean writePaused = false;
+	private volatile long writes = 0;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(2<<14);
+
+	// Shortest valid length prefix of each message type, Choke (0) to Cancel (8).
+	// A Piece has to carry at least one byte of block.
+	private static final int[] MIN_LENGTH = {1, 1, 1, 1, 5, 1, 13, 10, 13};
 
 
 	/**
 	 * Creates a new PeerConnection, but does not start it.
 	 *
 	 * @param t The torrent object that messages are to be passed to
+	 * @param ps The selector that will service this connection's socket, or null to use blocking I/O from run()
 	 * @param ip The ip address of the peer to connect to
 	 * @param port The port of the peer to connect to
 	 * @param peerId The peerId of the peer to connect to
 	 */
 
-	public PeerConnection(Torrent t, String ip, int port, ByteBuffer peerId) {
+	public PeerConnection(Torrent t, PeerSelector ps, String ip, int port, PeerId peerId) {
 		this.torrent = t;
+		this.peerSelector = ps;
 		this.ip = ip;
-		this.peerId = peerId.duplicate();
+		this.peerId = peerId;
 		this.port = port;
-		this.keepaliveTimer = new Timer(ip + " keepaliveTimer", true);
+		t.getTimeouts().schedule(keepAlive, KEEPALIVE_INTERVAL);
+		this.upload = new RateLimiter(RateLimiter.GLOBAL_UPLOAD, t.getUploadBucket(), new TokenBucket(RateLimiter.PEER_UPLOAD));
+		this.download = new RateLimiter(RateLimiter.GLOBAL_DOWNLOAD, t.getDownloadBucket(), new TokenBucket(RateLimiter.PEER_DOWNLOAD));
 
 	}
 
 	/**
-	 * Peer thread run loop.  Responsible for sending messages when they are
-	 * ready to be sent and receiving and reassembling messages.
+	 * Peer thread run loop for blocking mode.  Reads on this thread while a
+	 * second thread writes queued messages.  Only used when there is no
+	 * PeerSelector.
 	 */
-
 	@Override
 	public void run() {
-		try {
-			sock = new Socket(ip, port);
-			OutputStream outputStream = sock.getOutputStream();
-			InputStream inputStream = sock.getInputStream();
-			int len;
-			ByteBuffer writingBuffer = ByteBuffer.wrap(buffer);
-			writingBuffer.position(0);
-
-			// Since TCP data comes in as a byte stream and not discrete datagrams, we need to reassemble
-			// coherent messages.  This loop handles that.  buffer is responsible for data storage and is sufficiently
-			// large for any messages it may receive.  Since the handshake doesn't match the rest of the protocol,
-			// it is handled separately.
-			while (running) {
-				Thread.sleep(10);
-				ByteBuffer msg = messages.poll();
+		while (running) {
+			if (!connectBlocking())
+				return;
+			connected = true;
+			Thread writer = VirtualThreads.start(new Runnable() {
+				@Override
+				public void run() {
+					writeBlocking();
+				}
+			}, ip + " writer");
+			try {
+				while (running) {
+					pause(download);
+					read();
+				}
+			} catch (ProtocolException e) {
+				e.printStackTrace();
+				torrent.peerDying(peerId);
+				running = false;
+			} catch (IOException e) {
+				if (running)
+					e.printStackTrace();
+			} catch (InterruptedException e) {
+				running = false;
+			} finally {
+				close();
+				messages.add(STOP);
 				try {
-					if (msg != null) { // We have a message to send.
-						outputStream.write(msg.array());
-					}
-				} catch (Exception e) {
-					messages.clear();
-					sock = new Socket(ip, port);
-					outputStream = sock.getOutputStream();
-					inputStream = sock.getInputStream();
-					writingBuffer.position(0);
-					this.torrent.peerDying(peerId);
+					writer.join();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
 				}
-				if (inputStream.available() > 0) { // We have bytes to read...
-					byte[] tbuf = new byte[1024];
-					len = inputStream.read(tbuf);
-					writingBuffer.put(tbuf, 0, len);
+			}
+			if (running)
+				reset();
+		}
+	}
+
+	/**
+	 * Connects in blocking mode, waiting longer after each failed attempt.
+	 * The channel is published before connecting so that shutdown() can
+	 * abort the connect by closing it.
+	 *
+	 * @return Whether the socket is connected; false once shut down or out of retries
+	 */
+	private boolean connectBlocking() {
+		long delay = RETRY_DELAY;
+		for (int attempt = 0; running; ++attempt) {
+			try {
+				SocketChannel ch = SocketChannel.open();
+				channel = ch;
+				if (!running) {
+					close(); // shutdown() may have missed the new channel.
+					return false;
 				}
-				if (writingBuffer.position() <= 4) continue; // Not enough to do anything yet...
-				if (!handshakeDone) {
-					// Handshake is a bit different
-					if (writingBuffer.position() >= 68) { // Handshake is complete.
-						int ol = writingBuffer.position();
-						writingBuffer.position(68).flip(); // Grab the first 68 bytes.
-						ByteBuffer msgBuf = ByteBuffer.allocate(68);
-						msgBuf.put(writingBuffer);
-						msgBuf.flip();
-						msgBuf.position(0);
-						writingBuffer.limit(ol);
-						writingBuffer.compact();
-
-						// Pass the message to the Peer object.
-						PeerMessage peerMessage = processHandshake(msgBuf);
-						if (peerMessage != null) {
-							torrent.recvMessage(peerMessage);
-						}
-						handshakeDone = true;
-					}
-				} else {
-					while (writingBuffer.position() >= 4 && writingBuffer.position() >= (len = ByteBuffer.wrap(buffer).getInt()+4)) { // We have a full message now!
-						ByteBuffer msgBuf;
-						int ol = writingBuffer.position();
-						writingBuffer.position(len).flip();
-						msgBuf = ByteBuffer.allocate(len);
-						msgBuf.put(writingBuffer);
-						msgBuf.flip();
-
-						writingBuffer.limit(ol);
-						writingBuffer.compact();
-
-						PeerMessage peerMessage = processMessage(msgBuf);
-						if (peerMessage != null) {
-							torrent.recvMessage(peerMessage);
-						}
-					}
+				ch.socket().connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT);
+				return true;
+			} catch (IOException e) {
+				close();
+				if (!running)
+					return false;
+				if (attempt == CONNECT_RETRIES) {
+					e.printStackTrace();
+					running = false;
+					return false;
+				}
+				System.out.println("Could not connect to " + ip + ":" + port + ", retrying in " + delay / 1000 + " s.");
+			}
+			try {
+				synchronized (this) {
+					if (running)
+						wait(delay); // Woken by shutdown().
 				}
+			} catch (InterruptedException e) {
+				running = false;
+				return false;
+			}
+			delay *= 2;
+		}
+		return false;
+	}
+
+	/**
+	 * Writer loop for blocking mode.  Sleeps until a message is queued, and
+	 * stops at STOP or when a write fails because the reader closed the socket.
+	 */
+	private void writeBlocking() {
+		try {
+			while (true) {
+				OutgoingMessage msg = messages.take();
+				if (msg == STOP)
+					return;
+				addToBatch(msg);
+				boolean more = fillBatch();
+				pause(upload);
+				while (!writeBatch()) {
+					// A blocking channel normally takes everything at once.
+				}
+				if (!more)
+					return;
 			}
 		} catch (InterruptedException e) {
 			e.printStackTrace();
-		} catch (UnknownHostException e) {
+		} catch (IOException e) {
+			close(); // The reader notices and reconnects.
+		}
+	}
+
+	/**
+	 * Sleeps until the rate limits allow more I/O.  Blocking mode only.
+	 */
+	private void pause(RateLimiter limiter) throws InterruptedException {
+		long wait;
+		while ((wait = limiter.delay()) > 0) {
+			Thread.sleep(wait);
+		}
+	}
+
+	/**
+	 * Called on the selector thread after this connection was woken.  Opens the
+	 * socket the first time, closes it after shutdown, and otherwise asks to be
+	 * told when the socket is writable if there are messages queued.
+	 *
+	 * @param selector The selector to register the socket with
+	 */
+	void update(Selector selector) {
+		if (!running) {
+			close();
+			return;
+		}
+		try {
+			if (channel == null) {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+				if (channel.connect(new InetSocketAddress(ip, port))) {
+					connected();
+				}
+			} else if (connected) {
+				updateInterest();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Called on the selector thread when the socket is ready.
+	 *
+	 * @param key The key that was selected
+	 */
+	void handle(SelectionKey key) {
+		try {
+			if (key.isConnectable() && channel.finishConnect()) {
+				connected();
+			}
+			if (key.isValid() && key.isReadable() && !paused(download, true)) {
+				read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				write();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void connected() {
+		connected = true;
+		updateInterest();
+	}
+
+	/**
+	 * Watches for reads unless they are paused, and for writes if there is
+	 * something to write and they are not paused.
+	 */
+	private void updateInterest() {
+		int ops = readPaused ? 0 : SelectionKey.OP_READ;
+		if (!writePaused && (!batch.isEmpty() || !messages.isEmpty()))
+			ops |= SelectionKey.OP_WRITE;
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Checks the rate limits before reading or writing.  If they say to wait,
+	 * the selector stops watching that direction and resume() is scheduled
+	 * for when there should be tokens again.
+	 *
+	 * @param limiter The limits for the direction
+	 * @param reading Whether this is for reading
+	 * @return Whether the I/O has to wait
+	 */
+	private boolean paused(RateLimiter limiter, boolean reading) {
+		long wait = limiter.delay();
+		if (wait <= 0)
+			return false;
+		if (reading)
+			readPaused = true;
+		else
+			writePaused = true;
+		updateInterest();
+		peerSelector.schedule(this, wait);
+		return true;
+	}
+
+	/**
+	 * Called on the selector thread when paused I/O may go ahead again.
+	 */
+	void resume() {
+		readPaused = false;
+		writePaused = false;
+		if (connected && key != null && key.isValid())
+			updateInterest();
+	}
+
+	/**
+	 * Reads whatever the socket has and passes every complete message on to
+	 * the torrent.
+	 */
+	private void read() throws IOException {
+		int n = channel.read(readBuffer);
+		if (n == -1) {
+			throw new EOFException(ip + " closed the connection");
+		}
+		download.charge(n);
+		int len;
+
+		// Since TCP data comes in as a byte stream and not discrete datagrams, we need to reassemble
+		// coherent messages.  This loop handles that.  Complete messages are decoded straight out of
+		// readBuffer and whatever is left over is compacted once at the end, so nothing is copied
+		// except piece data.  Since the handshake doesn't match the rest of the protocol, it is
+		// handled separately.
+		readBuffer.flip();
+		if (!handshakeDone) {
+			// Handshake is a bit different
+			if (readBuffer.remaining() < 68) { // Not enough to do anything yet...
+				readBuffer.compact();
+				return;
+			}
+			// Handshake is complete.
+			ByteBuffer msgBuf = ByteBuffer.allocate(68);
+			readBuffer.get(msgBuf.array());
+
+			// Pass the message to the Peer object.
+			PeerMessage peerMessage = processHandshake(msgBuf);
+			if (peerMessage != null) {
+				torrent.recvMessage(peerMessage);
+			}
+			handshakeDone = true;
+		}
+		while (readBuffer.remaining() >= 4) {
+			len = readBuffer.getInt(readBuffer.position());
+			// Checked before anything else looks at the frame: len+4 below must not overflow,
+			// and a message that can never fit in readBuffer would never be read.
+			if (len < 0 || len > readBuffer.capacity() - 4) {
+				throw new ProtocolException(ip + " sent a message of " + len + " bytes");
+			}
+			if (readBuffer.remaining() < len + 4) // Not all here yet.
+				break;
+			int end = readBuffer.position() + 4 + len;
+			readBuffer.position(readBuffer.position() + 4);
+			PeerMessage peerMessage = processMessage(readBuffer, len);
+			readBuffer.position(end);
+			if (peerMessage != null) {
+				torrent.recvMessage(peerMessage);
+			}
+		}
+		readBuffer.compact();
+	}
+
+	/**
+	 * Writes queued messages until the queue is empty or the socket buffer
+	 * is full.
+	 */
+	private void write() throws IOException {
+		while (true) {
+			if (batch.isEmpty()) {
+				fillBatch();
+				if (batch.isEmpty())
+					break;
+			}
+			if (paused(upload, false) || !writeBatch()) // Over the limit, or the socket buffer is full.
+				return;
+		}
+		// Anything queued after this point wakes us up again through the selector.
+		updateInterest();
+	}
+
+	/**
+	 * Takes queued messages into the batch until it is full or ends with a
+	 * message sent from the data file.
+	 *
+	 * @return false if it came to STOP, which only the blocking reader queues
+	 */
+	private boolean fillBatch() {
+		OutgoingMessage msg;
+		while (batch.size() < MAX_BATCH && batchBytes < MAX_BATCH_BYTES && (batch.isEmpty() || batch.get(batch.size()-1).storage == null)
+				&& (msg = messages.poll()) != null) {
+			if (msg == STOP)
+				return false;
+			addToBatch(msg);
+		}
+		return true;
+	}
+
+	private void addToBatch(OutgoingMessage msg) {
+		batch.add(msg);
+		gather[gatherCount++] = msg.bytes;
+		batchBytes += msg.bytes.remaining();
+		if (msg.body != null) {
+			gather[gatherCount++] = msg.body;
+			batchBytes += msg.body.remaining();
+		}
+	}
+
+	/**
+	 * Writes as much of the batch as the channel takes: all of its buffers
+	 * with one gathering write, then the file part of the last message.
+	 *
+	 * @return Whether the whole batch has been written
+	 */
+	private boolean writeBatch() throws IOException {
+		while (gatherOffset < gatherCount && !gather[gatherOffset].hasRemaining())
+			gatherOffset++;
+		if (gatherOffset < gatherCount) {
+			upload.charge(channel.write(gather, gatherOffset, gatherCount - gatherOffset));
+			writes++;
+			while (gatherOffset < gatherCount && !gather[gatherOffset].hasRemaining())
+				gatherOffset++;
+			if (gatherOffset < gatherCount)
+				return false;
+		}
+		OutgoingMessage last = batch.get(batch.size()-1);
+		while (last.remaining > 0) {
+			long n = last.transfer(channel);
+			writes++;
+			upload.charge(n);
+			if (n == 0)
+				return false;
+		}
+		messagesSent += batch.size();
+		clearBatch();
+		return true;
+	}
+
+	private void clearBatch() {
+		batch.clear();
+		Arrays.fill(gather, 0, gatherCount, null);
+		gatherCount = 0;
+		gatherOffset = 0;
+		batchBytes = 0;
+	}
+
+	/**
+	 * @return ip:port of the peer
+	 */
+	public String getAddress() {
+		return ip + ":" + port;
+	}
+
+	/**
+	 * @return Number of messages written to the socket
+	 */
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+
+	/**
+	 * @return Number of write and transferTo calls made on the socket; compare with getMessagesSent()
+	 */
+	public long getWrites() {
+		return writes;
+	}
+
+	/**
+	 * Handles a broken socket.  A connection that was up gets one attempt at
+	 * reconnecting, a connection that could not be established or whose peer
+	 * broke the protocol is given up on.
+	 */
+	private void fail(IOException e) {
+		close();
+		if (!running || !connected || e instanceof ProtocolException) {
 			e.printStackTrace();
+			if (running && connected)
+				torrent.peerDying(peerId);
+			running = false;
+			return;
+		}
+		reset();
+		peerSelector.wake(this);
+	}
+
+	/**
+	 * Called on the selector thread when servicing this connection threw.
+	 * Whatever went wrong would most likely happen again, so the connection
+	 * is closed and given up on.
+	 *
+	 * @param e What was thrown
+	 */
+	void abort(RuntimeException e) {
+		e.printStackTrace();
+		close();
+		if (running && connected)
+			torrent.peerDying(peerId);
+		running = false;
+	}
+
+	/**
+	 * Forgets everything about the old socket before reconnecting.
+	 */
+	private void reset() {
+		connected = false;
+		handshakeDone = false;
+		channel = null;
+		clearBatch();
+		// Clearing the queue and then queueing the handshake would let a message the run loop
+		// queues in between go out first.  A fresh queue starts with the handshake; anything
+		// still being added to the old one is dropped along with the rest of it.
+		LinkedBlockingQueue<OutgoingMessage> fresh = new LinkedBlockingQueue<OutgoingMessage>();
+		if (handshake != null)
+			fresh.add(new OutgoingMessage(handshake.duplicate()));
+		messages = fresh;
+		resetKeepAlive();
+		readPaused = false;
+		writePaused = false;
+		readBuffer.clear();
+		this.torrent.peerDying(peerId);
+	}
+
+	private void close() {
+		SocketChannel ch = channel;
+		if (ch == null)
+			return;
+		try {
+			// Closing alone does not wake a thread blocked in transferTo; shutting the socket down does.
+			if (ch.isConnected())
+				ch.shutdownOutput();
+		} catch (IOException e) {
+			// Already closed or reset, which is just as good.
+		}
+		try { // Thanks, Java.
+			ch.close();
 		} catch (IOException e) {
 			e.printStackTrace();
-		} finally {
-			try { // Thanks, Java.
-				sock.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
 		}
 	}
 
@@ -167,14 +624,18 @@ public class PeerConnection implements Runnable {
 
 	/**
 	 * Convert a network message into a PeerMessage
-	 * @param msg A ByteBuffer containing the message
+	 * @param msg A ByteBuffer positioned just past the message's length prefix.  Its position is left undefined.
+	 * @param len The length prefix of the message
 	 * @return A PeerMessage representing whatever message was passed in.  Keep-Alive messages are discarded.
+	 * @throws ProtocolException If the message is too short for its type
 	 */
-	private PeerMessage processMessage(ByteBuffer msg) {
-		int len = msg.getInt();
+	private PeerMessage processMessage(ByteBuffer msg, int len) throws ProtocolException {
 		if (len == 0) // We don't actually emit a message when we get keepalives...
 			return null;
 		byte type = msg.get();
+		if (type >= 0 && type < MIN_LENGTH.length && len < MIN_LENGTH[type]) {
+			throw new ProtocolException(ip + " sent a message of type " + type + " with only " + len + " bytes");
+		}
 		switch (type) {
 			case 0: // Choke
 				return PeerMessage.Choke(peerId);
@@ -204,30 +665,51 @@ public class PeerConnection implements Runnable {
 			case 7: // Piece
 				idx = msg.getInt();
 				begin = msg.getInt();
-				return PeerMessage.Piece(peerId, idx, begin, (ByteBuffer) msg.compact().flip());
+				// The read buffer gets reused, so the block is the one thing that has to be copied out.
+				// It goes into a pooled buffer that the torrent gives back once the block is on disk.
+				ByteBuffer block = torrent.getBlockPool().acquire(len - 9);
+				int limit = msg.limit();
+				msg.limit(msg.position() + len - 9);
+				block.put(msg);
+				msg.limit(limit);
+				block.flip();
+				return PeerMessage.Piece(peerId, idx, begin, block);
+			case 8: // Cancel
+				idx = msg.getInt();
+				begin = msg.getInt();
+				length = msg.getInt();
+				return PeerMessage.Cancel(peerId, idx, begin, length);
 			default:
 				return null;
 		}
 	}
 
 
-	private TimerTask tsk = null;
 	/**
-	 * Updates the keepalive timer.  Called every time a message is queued.
+	 * Wakes up on the torrent's timeout wheel and sends a keepalive if the
+	 * connection has been quiet for KEEPALIVE_INTERVAL, then sleeps until
+	 * it could next be due.  Messages only push back lastQueued, so sending
+	 * never has to cancel and reschedule anything.
 	 */
-	private void resetKeepAlive() {
-		if (tsk != null) {
-			tsk.cancel();
-			keepaliveTimer.purge();
-		}
-		tsk = new TimerTask() {
-			@Override
-			public void run() {
-				messages.add(ByteBuffer.wrap(KEEP_ALIVE));
-				resetKeepAlive();
+	private final Runnable keepAlive = new Runnable() {
+		@Override
+		public void run() {
+			if (!running)
+				return;
+			long idle = System.currentTimeMillis() - lastQueued;
+			if (idle >= KEEPALIVE_INTERVAL) {
+				sendMessage(ByteBuffer.wrap(KEEP_ALIVE));
+				idle = 0;
 			}
-		};
-		keepaliveTimer.schedule(tsk, 120000);
+			torrent.getTimeouts().schedule(this, KEEPALIVE_INTERVAL - idle);
+		}
+	};
+
+	/**
+	 * Pushes back the next keepalive.  Called every time a message is queued.
+	 */
+	private void resetKeepAlive() {
+		lastQueued = System.currentTimeMillis();
 	}
 
 	/**
@@ -238,8 +720,15 @@ public class PeerConnection implements Runnable {
 	 * @return Whether or not the message was successfully added.
 	 */
 	private boolean sendMessage(ByteBuffer msg) {
+		return sendMessage(new OutgoingMessage(msg));
+	}
+
+	private boolean sendMessage(OutgoingMessage msg) {
 		resetKeepAlive();
-		return messages.add(msg);
+		boolean queued = messages.add(msg);
+		if (peerSelector != null)
+			peerSelector.wake(this);
+		return queued;
 	}
 
 	/* Convenience methods */
@@ -277,19 +766,37 @@ public class PeerConnection implements Runnable {
 	 * Sends Piece message
 	 * @param index index of the piece that is being sent
 	 * @param begin beginning index of the piece data
+	 * @param block ByteBuffer containing the block.  Everything from its position to its limit is sent;
+	 * the buffer is sent as is, not copied, so it must not be touched afterwards.
+	 * @return whether or not the message was queued to be sent
+	 */
+	public boolean sendPiece(int index, int begin, ByteBuffer block) {
+		ByteBuffer bb = ByteBuffer.allocate(13);
+		bb.put(PIECE);
+		bb.putInt(0, 9+block.remaining());
+		bb.putInt(index);
+		bb.putInt(begin);
+		bb.flip();
+		return sendMessage(new OutgoingMessage(bb, block));
+	}
+
+	/**
+	 * Sends Piece message with the block taken straight from the data file,
+	 * without copying it through the heap
+	 * @param index index of the piece that is being sent
+	 * @param begin beginning index of the piece data
 	 * @param length number of bytes of the piece data being sent
-	 * @param pieceData ByteBuffer containing piece data.  The bytes from begin to begin+length will be sent.
+	 * @param storage Storage holding the piece
 	 * @return whether or not the message was queued to be sent
 	 */
-	public boolean sendPiece(int index, int begin, int length, ByteBuffer pieceData) {
-		ByteBuffer bb = ByteBuffer.allocate(13+length);
+	public boolean sendPiece(int index, int begin, int length, PieceStorage storage) {
+		ByteBuffer bb = ByteBuffer.allocate(13);
 		bb.put(PIECE);
 		bb.putInt(0, 9+length);
 		bb.putInt(index);
 		bb.putInt(begin);
-		bb.put(pieceData.array(), begin, length);
 		bb.flip();
-		return sendMessage(bb);
+		return sendMessage(new OutgoingMessage(bb, storage, storage.offset(index, begin), length));
 	}
 
 	/**
@@ -309,6 +816,41 @@ public class PeerConnection implements Runnable {
 		return sendMessage(bb);
 	}
 
+	/**
+	 * Sends Cancel message
+	 * @param index index of the piece that was requested
+	 * @param begin beginning index of the piece data
+	 * @param length number of bytes of the piece that were requested
+	 * @return whether or not the message was queued to be sent
+	 */
+	public boolean sendCancel(int index, int begin, int length) {
+		ByteBuffer bb = ByteBuffer.allocate(17);
+		bb.put(CANCEL);
+		bb.putInt(index);
+		bb.putInt(begin);
+		bb.putInt(length);
+		bb.flip();
+		return sendMessage(bb);
+	}
+
+	/**
+	 * Drops a queued Piece message if it has not started going out yet.
+	 * @param index index of the piece that was requested
+	 * @param begin beginning index of the piece data
+	 * @param length number of bytes of the piece that were requested
+	 * @return whether a message was dropped
+	 */
+	public boolean cancelPiece(int index, int begin, int length) {
+		for (Iterator<OutgoingMessage> it = messages.iterator(); it.hasNext(); ) {
+			ByteBuffer bb = it.next().bytes;
+			if (bb.limit() >= 13 && bb.get(4) == PIECE[4] && bb.getInt(0) == 9+length && bb.getInt(5) == index && bb.getInt(9) == begin) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Sends Interested message
 	 * @return whether or not the message was queued to be sent
@@ -356,14 +898,38 @@ public class PeerConnection implements Runnable {
 		handshakeBuffer.putInt(0);
 		handshakeBuffer.put(infoHash);
 		handshakeBuffer.put(peerId);
-		
+		handshakeBuffer.flip();
+		handshake = handshakeBuffer.duplicate();
+
 		return sendMessage(handshakeBuffer);
 	}
 
+	/**
+	 * Drops a peer for a message that was framed correctly but makes no
+	 * sense, such as a Have for a piece past the end of the torrent.  Like a
+	 * malformed frame, the peer is not connected to again.  Called on the
+	 * run loop.
+	 *
+	 * @param e What the peer did wrong
+	 */
+	public void reject(ProtocolException e) {
+		e.printStackTrace();
+		shutdown();
+		torrent.peerDying(peerId);
+	}
+
 	/**
 	 * Used to kill the runnable
 	 */
 	public void shutdown() {
 		running = false;
+		if (peerSelector != null)
+			peerSelector.wake(this);
+		else {
+			close(); // Unblocks the reader or a connect.
+			synchronized (this) {
+				notifyAll(); // Cuts short a wait before retrying a connect.
+			}
+		}
 	}
 }
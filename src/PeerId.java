@@ -0,0 +1,107 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The 20 byte id of a peer, used to look peers up.  Unlike a ByteBuffer it
+ * cannot change after it has been put in a map: the bytes are copied in and
+ * never handed out, and the hash code is worked out once.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public final class PeerId implements Comparable<PeerId> {
+
+	private final byte[] id;
+	private final int hash;
+	private final boolean address;
+
+	/**
+	 * @param id The id, from position to limit.  The buffer is not changed.
+	 */
+	public PeerId(ByteBuffer id) {
+		this(id, false);
+	}
+
+	private PeerId(ByteBuffer id, boolean address) {
+		this.id = new byte[id.remaining()];
+		id.duplicate().get(this.id);
+		this.hash = Arrays.hashCode(this.id) ^ (address ? 1 : 0);
+		this.address = address;
+	}
+
+	/**
+	 * Makes a stand-in id for a peer the tracker listed without one.  It
+	 * never equals a real id.
+	 *
+	 * @param address The peer's address and port, from position to limit
+	 * @return The id
+	 */
+	public static PeerId fromAddress(ByteBuffer address) {
+		return new PeerId(address, true);
+	}
+
+	/**
+	 * @return Whether this is a stand-in from fromAddress, so the peer's
+	 *         handshake can carry any id
+	 */
+	public boolean isAddress() {
+		return address;
+	}
+
+	/**
+	 * Checks an id against a peer's handshake without copying it.
+	 *
+	 * @param bb Buffer holding an id
+	 * @param offset Where in the buffer the id starts
+	 * @return Whether it is this id
+	 */
+	public boolean matches(ByteBuffer bb, int offset) {
+		if (offset < 0 || bb.limit() - offset < id.length)
+			return false;
+		for (int i = 0; i < id.length; ++i) {
+			if (bb.get(offset + i) != id[i])
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof PeerId && hash == ((PeerId) o).hash && address == ((PeerId) o).address && Arrays.equals(id, ((PeerId) o).id);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public int compareTo(PeerId o) {
+		if (address != o.address)
+			return address ? 1 : -1;
+		for (int i = 0; i < id.length && i < o.id.length; ++i) {
+			if (id[i] != o.id[i])
+				return (id[i] & 0xff) - (o.id[i] & 0xff);
+		}
+		return id.length - o.id.length;
+	}
+
+	/**
+	 * @return The id as text if it is printable, otherwise in hex
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : id) {
+			if (b < 0x20 || b > 0x7e) {
+				sb.setLength(0);
+				for (byte h : id)
+					sb.append(String.format("%02x", h));
+				return sb.toString();
+			}
+			sb.append((char) b);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,180 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * The peers a tracker gave us, kept in flat arrays rather than a map and a
+ * few Strings per peer.  Every address takes 16 bytes of one byte array:
+ * IPv6 addresses as they are and IPv4 addresses in their IPv4-mapped form
+ * (::ffff:a.b.c.d), so both kinds of compact list decode with nothing more
+ * than array copies.
+ *
+ * Compact lists do not say who the peers are, so their ids are null.  Peers
+ * from the old dictionary form keep their id, and their ip as given, since it
+ * may be a DNS name.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class PeerList {
+
+	private static final int ADDRESS = 16;
+	private static final byte[] V4_PREFIX = new byte[] {0,0,0,0,0,0,0,0,0,0,(byte)0xff,(byte)0xff};
+
+	private byte[] addresses;
+	private int[] ports;
+	private PeerId[] ids = null;
+	private String[] hosts = null;
+	private int size = 0;
+
+	/**
+	 * @param capacity Number of peers to make room for
+	 */
+	public PeerList(int capacity) {
+		this.addresses = new byte[Math.max(capacity, 1) * ADDRESS];
+		this.ports = new int[Math.max(capacity, 1)];
+	}
+
+	private void grow(int extra) {
+		if (size + extra <= ports.length)
+			return;
+		int capacity = Math.max(size + extra, 2 * ports.length);
+		byte[] a = new byte[capacity * ADDRESS];
+		System.arraycopy(addresses, 0, a, 0, size * ADDRESS);
+		addresses = a;
+		int[] p = new int[capacity];
+		System.arraycopy(ports, 0, p, 0, size);
+		ports = p;
+		if (ids != null) {
+			PeerId[] i = new PeerId[capacity];
+			System.arraycopy(ids, 0, i, 0, size);
+			ids = i;
+		}
+		if (hosts != null) {
+			String[] h = new String[capacity];
+			System.arraycopy(hosts, 0, h, 0, size);
+			hosts = h;
+		}
+	}
+
+	/**
+	 * Adds the peers of a compact list, 4 address bytes and a 2 byte port
+	 * each for "peers", 16 and 2 for "peers6".  A trailing partial entry is
+	 * ignored.
+	 *
+	 * @param compact The list, from position to limit.  The buffer is not changed.
+	 * @param ipv6 Whether it is a "peers6" list
+	 */
+	public void addCompact(ByteBuffer compact, boolean ipv6) {
+		int entry = ipv6 ? 18 : 6;
+		int count = compact.remaining() / entry;
+		grow(count);
+		ByteBuffer bb = compact.duplicate();
+		for (int i = 0; i < count; ++i) {
+			int at = size * ADDRESS;
+			if (!ipv6) {
+				System.arraycopy(V4_PREFIX, 0, addresses, at, V4_PREFIX.length);
+				at += V4_PREFIX.length;
+			}
+			bb.get(addresses, at, ipv6 ? 16 : 4);
+			ports[size++] = bb.getShort() & 0xffff;
+		}
+	}
+
+	/**
+	 * Adds one peer of a dictionary list.
+	 *
+	 * @param ip The peer's ip as given: dotted quad, IPv6 or a DNS name
+	 * @param port The peer's port
+	 * @param peerId The peer's id, or null if the tracker left it out
+	 */
+	public void add(String ip, int port, PeerId peerId) {
+		grow(1);
+		if (ids == null)
+			ids = new PeerId[ports.length];
+		if (hosts == null)
+			hosts = new String[ports.length];
+		ids[size] = peerId;
+		hosts[size] = ip;
+		ports[size++] = port;
+	}
+
+	/**
+	 * @return Number of peers
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i Which peer
+	 * @return The peer's ip as text, e.g. "128.6.171.130"
+	 */
+	public String getHost(int i) {
+		if (hosts != null && hosts[i] != null)
+			return hosts[i];
+		int at = i * ADDRESS;
+		if (isV4(at)) {
+			return (addresses[at + 12] & 0xff) + "." + (addresses[at + 13] & 0xff) + "." + (addresses[at + 14] & 0xff) + "." + (addresses[at + 15] & 0xff);
+		}
+		byte[] a = new byte[ADDRESS];
+		System.arraycopy(addresses, at, a, 0, ADDRESS);
+		try {
+			return InetAddress.getByAddress(a).getHostAddress(); // No lookup, just formatting.
+		} catch (UnknownHostException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private boolean isV4(int at) {
+		for (int j = 0; j < V4_PREFIX.length; ++j) {
+			if (addresses[at + j] != V4_PREFIX[j])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param i Which peer
+	 * @return The peer's port
+	 */
+	public int getPort(int i) {
+		return ports[i];
+	}
+
+	/**
+	 * @param i Which peer
+	 * @return The id the tracker gave for the peer, or null if it gave none
+	 */
+	public PeerId getPeerId(int i) {
+		return ids == null ? null : ids[i];
+	}
+
+	/**
+	 * An id to keep track of a peer by until its handshake says who it is:
+	 * the id the tracker gave if there is one, otherwise one made from its
+	 * address and port.
+	 *
+	 * @param i Which peer
+	 * @return The id
+	 */
+	public PeerId getKey(int i) {
+		PeerId id = getPeerId(i);
+		if (id != null)
+			return id;
+		ByteBuffer key;
+		if (hosts != null && hosts[i] != null) {
+			byte[] host = hosts[i].getBytes();
+			key = ByteBuffer.allocate(host.length + 2);
+			key.put(host);
+		} else {
+			key = ByteBuffer.allocate(ADDRESS + 2);
+			key.put(addresses, i * ADDRESS, ADDRESS);
+		}
+		key.putShort((short) ports[i]);
+		key.flip();
+		return PeerId.fromAddress(key);
+	}
+}
@@ -0,0 +1,115 @@
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+import edu.rutgers.cs.cs352.bt.util.Bencoder2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Times decoding a tracker response with thousands of peers in each of the
+ * forms a tracker may send them: the old list of dictionaries, a compact
+ * "peers" string, and compact "peers" and "peers6" together.  Checks that
+ * every form gives back the same addresses and ports, and exits with status
+ * 1 if one does not.
+ *
+ * Usage: java PeerListBench [peers] [iterations]
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class PeerListBench {
+
+	public static void main(String[] args) throws BencodingException, IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		// Bencoder2.encode writes every string as empty, so the responses are built by hand.
+		ByteArrayOutputStream dictionaries = new ByteArrayOutputStream();
+		ByteBuffer compact = ByteBuffer.allocate(6 * count);
+		ByteBuffer compact6 = ByteBuffer.allocate(18 * count);
+		for (int i = 0; i < count; ++i) {
+			byte[] id = new byte[20];
+			ByteBuffer.wrap(id).putInt(i);
+			write(dictionaries, "d2:ip" + host(i).length() + ":" + host(i) + "7:peer id20:");
+			dictionaries.write(id, 0, id.length);
+			write(dictionaries, "4:porti" + port(i) + "ee");
+			compact.put((byte) 10).put((byte) (i >> 16)).put((byte) (i >> 8)).put((byte) i).putShort((short) port(i));
+			compact6.putShort((short) 0x2001).putShort((short) 0xdb8).putLong(0).putInt(i).putShort((short) port(i));
+		}
+
+		ByteArrayOutputStream dictionaryForm = new ByteArrayOutputStream();
+		write(dictionaryForm, "d8:intervali1800e5:peersl");
+		dictionaries.writeTo(dictionaryForm);
+		write(dictionaryForm, "ee");
+		ByteArrayOutputStream compactForm = new ByteArrayOutputStream();
+		write(compactForm, "d8:intervali1800e5:peers" + compact.capacity() + ":");
+		compactForm.write(compact.array(), 0, compact.capacity());
+		ByteArrayOutputStream bothForm = new ByteArrayOutputStream();
+		compactForm.writeTo(bothForm);
+		write(bothForm, "6:peers6" + compact6.capacity() + ":");
+		bothForm.write(compact6.array(), 0, compact6.capacity());
+		write(compactForm, "e");
+		write(bothForm, "e");
+
+		System.out.println(count + " peers, " + iterations + " iterations");
+		run("dictionaries", dictionaryForm.toByteArray(), count, false, iterations);
+		run("compact", compactForm.toByteArray(), count, false, iterations);
+		run("compact+peers6", bothForm.toByteArray(), count, true, iterations);
+		System.out.println("ok");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void run(String name, byte[] bencoded, int count, boolean ipv6, int iterations) throws BencodingException {
+		check(TrackerConnection.getPeers((HashMap<ByteBuffer,Object>) Bencoder2.decode(bencoded)), count, ipv6, name);
+		// Warm up before timing.
+		for (int i = 0; i < iterations; ++i)
+			TrackerConnection.getPeers((HashMap<ByteBuffer,Object>) Bencoder2.decode(bencoded));
+
+		long decoding = 0, listing = 0;
+		for (int i = 0; i < iterations; ++i) {
+			long t = System.nanoTime();
+			HashMap<ByteBuffer,Object> response = (HashMap<ByteBuffer,Object>) Bencoder2.decode(bencoded);
+			long t2 = System.nanoTime();
+			PeerList list = TrackerConnection.getPeers(response);
+			for (int p = 0; p < list.size(); ++p)
+				list.getKey(p);
+			long t3 = System.nanoTime();
+			decoding += t2 - t;
+			listing += t3 - t2;
+		}
+		int peers = ipv6 ? 2 * count : count;
+		System.out.println(name + ": " + bencoded.length + " bytes, decode " + decoding / iterations / 1000 + " us, peer list "
+				+ listing / iterations / 1000 + " us, " + (decoding + listing) / iterations / peers + " ns per peer");
+	}
+
+	private static void check(PeerList list, int count, boolean ipv6, String name) {
+		if (list.size() != (ipv6 ? 2 * count : count)) {
+			System.out.println(name + ": " + list.size() + " peers instead of " + count);
+			System.exit(1);
+		}
+		for (int i = 0; i < count; ++i) {
+			if (!host(i).equals(list.getHost(i)) || list.getPort(i) != port(i)) {
+				System.out.println(name + ": peer " + i + " is " + list.getHost(i) + ":" + list.getPort(i) + " instead of " + host(i) + ":" + port(i));
+				System.exit(1);
+			}
+			if (ipv6 && (list.getPort(count + i) != port(i) || !list.getHost(count + i).startsWith("2001:db8:"))) {
+				System.out.println(name + ": IPv6 peer " + i + " is " + list.getHost(count + i) + ":" + list.getPort(count + i));
+				System.exit(1);
+			}
+		}
+	}
+
+	private static void write(ByteArrayOutputStream out, String s) throws IOException {
+		out.write(s.getBytes());
+	}
+
+	private static String host(int i) {
+		return "10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff);
+	}
+
+	private static int port(int i) {
+		return 6881 + i % 1000;
+	}
+}
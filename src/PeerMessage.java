@@ -1,9 +1,11 @@
 import java.nio.ByteBuffer;
 import java.util.BitSet;
-import java.util.HashMap;
 
 /**
  * Created by wlangford on 4/28/14.
+ *
+ * A single flat message type.  The type tag says which of the primitive
+ * fields are meaningful; the rest are left at -1 or null.
  */
 public class PeerMessage implements Comparable<PeerMessage> {
 
@@ -27,83 +29,87 @@ public class PeerMessage implements Comparable<PeerMessage> {
 		Cancel,
 	}
 
-	private ByteBuffer peerId;
+	private PeerId peerId;
 	private PeerMessageType type;
-	private HashMap<String,Object> data;
+	private int index = -1;
+	private int begin = -1;
+	private int length = -1;
+	private ByteBuffer bytes;
+	private BitSet bitfield;
 
-	public static PeerMessage Handshake(ByteBuffer peerId, ByteBuffer msg) {
+	public static PeerMessage Handshake(PeerId peerId, ByteBuffer msg) {
 		PeerMessage m = new PeerMessage(peerId);
 		m.type = PeerMessageType.Handshake;
-		m.data.put("bytes",msg);
+		m.bytes = msg;
 		return m;
 	}
 
-	public static PeerMessage Choke(ByteBuffer ip) {
+	public static PeerMessage Choke(PeerId ip) {
 		PeerMessage m = new PeerMessage(ip);
 		m.type = PeerMessageType.Choke;
 		return m;
 	}
 
-	public static PeerMessage Unchoke(ByteBuffer ip) {
+	public static PeerMessage Unchoke(PeerId ip) {
 		PeerMessage m = new PeerMessage(ip);
 		m.type = PeerMessageType.Unchoke;
 		return m;
 	}
 
-	public static PeerMessage Interested(ByteBuffer ip) {
+	public static PeerMessage Interested(PeerId ip) {
 		PeerMessage m = new PeerMessage(ip);
 		m.type = PeerMessageType.Interested;
 		return m;
 	}
 
-	public static PeerMessage NotInterested(ByteBuffer ip) {
+	public static PeerMessage NotInterested(PeerId ip) {
 		PeerMessage m = new PeerMessage(ip);
 		m.type = PeerMessageType.NotInterested;
 		return m;
 	}
 
-	public static PeerMessage Have(ByteBuffer ip,int index) {
+	public static PeerMessage Have(PeerId ip,int index) {
 		PeerMessage m = new PeerMessage(ip);
 		m.type = PeerMessageType.Have;
-		m.data.put("index",index);
+		m.index = index;
 		return m;
 	}
 
-	public static PeerMessage Bitfield(ByteBuffer ip, BitSet bitfield) {
+	public static PeerMessage Bitfield(PeerId ip, BitSet bitfield) {
 		PeerMessage m = new PeerMessage(ip);
 		m.type = PeerMessageType.Bitfield;
-		m.data.put("bitfield",bitfield);
+		m.bitfield = bitfield;
 		return m;
 	}
 
-	public static PeerMessage Request(ByteBuffer ip,int index, int begin, int length) {
+	public static PeerMessage Request(PeerId ip,int index, int begin, int length) {
 		PeerMessage m = new PeerMessage(ip);
 		m.type = PeerMessageType.Request;
-		m.data.put("index",index);
-		m.data.put("begin",begin);
-		m.data.put("length",length);
+		m.index = index;
+		m.begin = begin;
+		m.length = length;
 		return m;
 	}
 
-	public static PeerMessage Piece(ByteBuffer ip, int index, int begin, ByteBuffer bytes) {
+	public static PeerMessage Piece(PeerId ip, int index, int begin, ByteBuffer bytes) {
 		PeerMessage m = new PeerMessage(ip);
 		m.type = PeerMessageType.Piece;
-		m.data.put("index",index);
-		m.data.put("begin",begin);
-		m.data.put("bytes",bytes);
+		m.index = index;
+		m.begin = begin;
+		m.bytes = bytes;
 		return m;
 	}
 
-	public static PeerMessage Cancel(ByteBuffer ip, int index, int begin, int length) {
+	public static PeerMessage Cancel(PeerId ip, int index, int begin, int length) {
 		PeerMessage m = new PeerMessage(ip);
 		m.type = PeerMessageType.Cancel;
-		m.data.put("index",index);
-		m.data.put("begin",begin);
-		m.data.put("length",length);
+		m.index = index;
+		m.begin = begin;
+		m.length = length;
 		return m;
 	}
 
-	public ByteBuffer getPeerId() {
+	public PeerId getPeerId() {
 		return peerId;
 	}
 
@@ -112,40 +118,26 @@ public class PeerMessage implements Comparable<PeerMessage> {
 	}
 
 	public int getIndex() {
-		if (type == PeerMessageType.Have || type == PeerMessageType.Request ||
-			type == PeerMessageType.Piece || type == PeerMessageType.Cancel)
-			return (Integer) data.get("index");
-		return -1;
+		return index;
 	}
 
 	public int getBegin() {
-		if (type == PeerMessageType.Request || type == PeerMessageType.Piece ||
-			type == PeerMessageType.Cancel)
-			return (Integer) data.get("begin");
-		return -1;
+		return begin;
 	}
 
 	public int getLength() {
-		if (type == PeerMessageType.Request || type == PeerMessageType.Cancel)
-			return (Integer) data.get("length");
-		return -1;
+		return length;
 	}
 
 	public BitSet getBitfield() {
-		if (type == PeerMessageType.Bitfield)
-			return (BitSet)data.get("bitfield");
-		return null;
+		return bitfield;
 	}
 
 	public ByteBuffer getBytes() {
-		if (type == PeerMessageType.Piece || type == PeerMessageType.Handshake)
-			return (ByteBuffer)data.get("bytes");
-		return null;
+		return bytes;
 	}
 
-	private PeerMessage(ByteBuffer peerId) {
+	private PeerMessage(PeerId peerId) {
 		this.peerId = peerId;
-		data = new HashMap<String, Object>();
-
 	}
 }
@@ -0,0 +1,151 @@
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hammers a peer registry like Torrent's from several threads at once.
+ * Writers add and remove peers and look them up again with ids copied
+ * from buffers that are moved and overwritten afterwards, as incoming
+ * messages do to theirs.  Readers walk the registry the way the run loop
+ * does, meanwhile.  Checks that every peer still in the registry is found,
+ * that no removed peer is found, that a stand-in id from an address never
+ * matches the real id with the same bytes, and that walking the registry
+ * never throws.  Exits with status 1 at the first failure.
+ *
+ * Usage: java PeerRegistryStress [threads] [operations]
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class PeerRegistryStress {
+
+	private static final int IDS_PER_THREAD = 200;
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		final int operations = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		final ConcurrentHashMap<PeerId,Peer> peers = new ConcurrentHashMap<PeerId, Peer>();
+		final AtomicInteger failures = new AtomicInteger();
+		final AtomicInteger walks = new AtomicInteger();
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final int[] expected = new int[threads];
+
+		Thread[] writers = new Thread[threads];
+		for (int t = 0; t < threads; ++t) {
+			final int me = t;
+			writers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(352 + me);
+					HashSet<Integer> mine = new HashSet<Integer>();
+					// Reused like a read buffer: ids are copied out of it, then it is overwritten.
+					ByteBuffer scratch = ByteBuffer.allocate(64);
+					for (int op = 0; op < operations; ++op) {
+						int n = me * IDS_PER_THREAD + random.nextInt(IDS_PER_THREAD);
+						boolean address = n % 5 == 0;
+						PeerId id = id(scratch, n, address, random);
+						if (random.nextInt(3) == 0) {
+							peers.remove(id);
+							mine.remove(n);
+						} else {
+							peers.put(id, new Peer(id, null));
+							mine.add(n);
+						}
+
+						int m = me * IDS_PER_THREAD + random.nextInt(IDS_PER_THREAD);
+						boolean mAddress = m % 5 == 0;
+						Peer found = peers.get(id(scratch, m, mAddress, random));
+						if (mine.contains(m) != (found != null)) {
+							fail(failures, "peer " + m + (mine.contains(m) ? " is missing" : " was found after it was removed"));
+							return;
+						}
+						if (found != null && !found.getPeerId().equals(id(scratch, m, mAddress, random))) {
+							fail(failures, "looking up peer " + m + " found another peer");
+							return;
+						}
+						// The same bytes as a stand-in for an address, or as a real id, are someone else.
+						if (peers.containsKey(id(scratch, m, !mAddress, random))) {
+							fail(failures, "peer " + m + " was found under the wrong kind of id");
+							return;
+						}
+					}
+					expected[me] = mine.size();
+				}
+			}, "Writer " + t);
+		}
+
+		Thread[] readers = new Thread[2];
+		for (int r = 0; r < readers.length; ++r) {
+			readers[r] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (!done.get()) {
+							for (Map.Entry<PeerId,Peer> e : peers.entrySet()) {
+								if (!e.getKey().equals(e.getValue().getPeerId()))
+									fail(failures, "a peer is in the registry under another peer's id");
+							}
+							walks.incrementAndGet();
+						}
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+						fail(failures, "walking the registry threw " + e);
+					}
+				}
+			}, "Reader " + r);
+		}
+
+		long t = System.nanoTime();
+		for (Thread reader : readers)
+			reader.start();
+		for (Thread writer : writers)
+			writer.start();
+		for (Thread writer : writers)
+			writer.join();
+		done.set(true);
+		for (Thread reader : readers)
+			reader.join();
+		long took = System.nanoTime() - t;
+
+		int total = 0;
+		for (int count : expected)
+			total += count;
+		if (failures.get() == 0 && peers.size() != total)
+			fail(failures, peers.size() + " peers in the registry instead of " + total);
+		if (failures.get() > 0)
+			System.exit(1);
+		System.out.println(threads + " threads, " + operations + " operations each in " + took / 1000000 + " ms, "
+				+ walks.get() + " walks of the registry, " + total + " peers left: ok");
+	}
+
+	/**
+	 * Copies an id out of the scratch buffer, from a random position, and then
+	 * scribbles over the buffer so the id must not depend on it.
+	 */
+	private static PeerId id(ByteBuffer scratch, int n, boolean address, Random random) {
+		// Stand-ins are made from 6 address bytes, but the same length as a real id tests the flag alone.
+		int length = 20;
+		scratch.clear();
+		scratch.position(random.nextInt(scratch.capacity() - length));
+		int start = scratch.position();
+		scratch.putInt(n);
+		while (scratch.position() < start + length)
+			scratch.put((byte) 0x55);
+		scratch.position(start);
+		scratch.limit(start + length);
+		PeerId id = address ? PeerId.fromAddress(scratch) : new PeerId(scratch);
+		scratch.clear();
+		scratch.putLong(-1L).putLong(-1L).putLong(-1L);
+		return id;
+	}
+
+	private static void fail(AtomicInteger failures, String what) {
+		if (failures.getAndIncrement() == 0)
+			System.out.println("FAILED: " + what);
+	}
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Multiplexes the sockets of every PeerConnection onto a single Selector,
+ * so one I/O thread services the whole swarm.  The thread only wakes up when
+ * a socket is ready or when another thread has queued work for a connection.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class PeerSelector implements Runnable {
+
+	private Selector selector;
+	private volatile boolean running = true;
+
+	// Connections that other threads have touched since the last select().
+	// Only the selector thread may register channels or change interest ops.
+	private ConcurrentLinkedQueue<PeerConnection> pending = new ConcurrentLinkedQueue<PeerConnection>();
+
+	/**
+	 * A connection to resume at some time.
+	 */
+	private static class Resume implements Comparable<Resume> {
+		final long time;
+		final PeerConnection pc;
+
+		Resume(long time, PeerConnection pc) {
+			this.time = time;
+			this.pc = pc;
+		}
+
+		@Override
+		public int compareTo(Resume o) {
+			return time < o.time ? -1 : time > o.time ? 1 : 0;
+		}
+	}
+
+	// Connections paused by rate limiting.  Only touched on the selector thread.
+	private PriorityQueue<Resume> resumes = new PriorityQueue<Resume>();
+
+	public PeerSelector() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Hands a new connection to the selector thread, which opens its socket.
+	 *
+	 * @param pc The connection to start servicing
+	 */
+	public void register(PeerConnection pc) {
+		wake(pc);
+	}
+
+	/**
+	 * Asks the selector thread to look at a connection again, e.g. because it
+	 * has new messages to write or has been shut down.
+	 *
+	 * @param pc The connection that needs attention
+	 */
+	public void wake(PeerConnection pc) {
+		pending.add(pc);
+		selector.wakeup();
+	}
+
+	/**
+	 * Calls resume() on a connection after a delay.  Only called on the
+	 * selector thread.
+	 *
+	 * @param pc The connection
+	 * @param delay Milliseconds to wait
+	 */
+	void schedule(PeerConnection pc, long delay) {
+		resumes.add(new Resume(System.currentTimeMillis() + delay, pc));
+	}
+
+	/**
+	 * Selector thread run loop.  Applies pending updates and dispatches
+	 * readiness events to the connections they belong to.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				Resume next = resumes.peek();
+				if (next == null) {
+					selector.select();
+				} else {
+					long wait = next.time - System.currentTimeMillis();
+					if (wait > 0)
+						selector.select(wait);
+					else
+						selector.selectNow();
+				}
+				long now = System.currentTimeMillis();
+				PeerConnection pc;
+				while ((next = resumes.peek()) != null && next.time <= now) {
+					pc = resumes.poll().pc;
+					try {
+						pc.resume();
+					} catch (RuntimeException e) {
+						pc.abort(e);
+					}
+				}
+				while ((pc = pending.poll()) != null) {
+					try {
+						pc.update(selector);
+					} catch (RuntimeException e) {
+						pc.abort(e);
+					}
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					pc = (PeerConnection) key.attachment();
+					try {
+						pc.handle(key);
+					} catch (RuntimeException e) {
+						// A bug or a bad message on one connection must not take down
+						// the thread every other connection depends on.
+						pc.abort(e);
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Used to kill the runnable.  Closes every socket it was servicing.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+}
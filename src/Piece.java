@@ -1,7 +1,8 @@
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.BitSet;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A representation of a piece which is owned by a torrent
@@ -29,32 +30,64 @@ public class Piece {
 	private int index;
 	private int size;
 	private byte[] hash;
-	private BitSet slices;
-	private BitSet loadingSlices;
+	// Safe to claim, complete and expire slices from any thread.
+	private SliceState slices;
 	private int maxSlices;
-	private byte[] data;
-	private PieceState state = PieceState.INCOMPLETE;
-	private Timer loadingTimer;
-	private TimerTask[] loadingTasks;
+	private volatile PieceState state = PieceState.INCOMPLETE;
+	// A requested slice is given up on after this long, so it can be asked for again.
+	public static final long SLICE_TIMEOUT = 30000;
+	private TimeoutWheel timeouts;
+	private Runnable onTimeout;
+	private AtomicReferenceArray<SliceTimeout> loadingTimeouts;
+
+	/**
+	 * Gives up on a slice request when it fires, unless the slice has
+	 * arrived or been requested again since.
+	 */
+	private class SliceTimeout implements Runnable {
+		final int slice;
+		volatile TimeoutWheel.Timeout timeout;
+
+		SliceTimeout(int slice) {
+			this.slice = slice;
+		}
+
+		@Override
+		public void run() {
+			if (loadingTimeouts.compareAndSet(slice, this, null) && slices.expire(slice))
+				onTimeout.run();
+		}
+
+		void cancel() {
+			TimeoutWheel.Timeout t = timeout;
+			if (t != null)
+				t.cancel();
+		}
+	}
+
+	// Running SHA-1 of the slices received in order so far.  Only exists while
+	// the piece is being downloaded.
+	private MessageDigest digest;
+	private int hashedSlices = 0;
 
     /**
      *
      * @param index piece index
      * @param size size of piece
      * @param hash SHA hash of piece
+     * @param timeouts Where slice request timeouts are scheduled
+     * @param onTimeout Run on the wheel thread after a slice request times out
      */
 
-	public Piece(int index, int size, ByteBuffer hash) {
+	public Piece(int index, int size, ByteBuffer hash, TimeoutWheel timeouts, Runnable onTimeout) {
 		this.hash = hash.array();
 		this.index = index;
 		this.size = size;
-		this.data = new byte[size];
 		this.maxSlices = (size + (SLICE_SIZE) - 1)/(SLICE_SIZE); // Ceiling(size/sliceSize)
-		this.slices = new BitSet(maxSlices);
-		this.loadingSlices = new BitSet(maxSlices);
-		this.loadingTimer = new Timer("Piece " + this.index + " timer", true);
-		this.loadingTasks = new TimerTask[this.maxSlices];
-		slices.clear();
+		this.slices = new SliceState(maxSlices);
+		this.timeouts = timeouts;
+		this.onTimeout = onTimeout;
+		this.loadingTimeouts = new AtomicReferenceArray<SliceTimeout>(this.maxSlices);
 	}
 
 	public int getIndex() {
@@ -73,56 +106,150 @@ public class Piece {
 		return state;
 	}
 
-	public void setData(ByteBuffer bb) {
-		bb.get(data);
-	}
-
 	public void setState(PieceState st) {
 		state = st;
 	}
 
-	public ByteBuffer getByteBuffer() {
-		return ByteBuffer.wrap(data);
+	/**
+	 * Marks a slice as received.
+	 *
+	 * @param idx The slice
+	 * @return false if we already had it
+	 */
+	public boolean putSlice(int idx) {
+		boolean added = slices.complete(idx);
+		SliceTimeout st = loadingTimeouts.getAndSet(idx, null);
+		if (st != null)
+			st.cancel();
+		return added;
+	}
+
+	public boolean hasSlice(int idx) {
+		return slices.isDone(idx);
+	}
+
+	/**
+	 * @return A copy of the slices we have received
+	 */
+	public BitSet getSlices() {
+		return slices.getDone();
 	}
 
-	public void putSlice(int idx) {
-		slices.set(idx, true);
-		loadingSlices.set(idx, false);
-		loadingTasks[idx].cancel();
+	/**
+	 * Restores received slices, e.g. from a resume file.
+	 *
+	 * @param received Slices that are already in storage
+	 */
+	public void setSlices(BitSet received) {
+		this.slices.set(received);
+		cancelTimeouts();
+		resetHash();
 	}
 
 	public void clearSlices() {
-		this.slices.clear();
-		this.loadingSlices.clear();
+		this.slices.set(new BitSet());
+		cancelTimeouts();
+		resetHash();
 	}
 
-	public int getNextSlice() {
-		return getNextSlice(false);
+	private void cancelTimeouts() {
+		for (int i = 0; i < maxSlices; ++i) {
+			SliceTimeout st = loadingTimeouts.getAndSet(i, null);
+			if (st != null)
+				st.cancel();
+		}
 	}
 
-	public int getNextSlice(boolean repeats) {
-		int slice = slices.nextClearBit(0);
-		if (!repeats) {
-			while (loadingSlices.get(slice)) {
-				slice = slices.nextClearBit(slice+1);
+	/**
+	 * Feeds a slice that just arrived into the running hash, if it is the
+	 * next one after the slices hashed so far.  Slices that arrive out of
+	 * order are left for whoever finishes the hash.
+	 *
+	 * @param slice The slice
+	 * @param data The slice's data, from position to limit.  Its position is advanced.
+	 */
+	public void hashSlice(int slice, ByteBuffer data) {
+		if (slice != hashedSlices)
+			return;
+		if (digest == null) {
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+				return;
 			}
 		}
-		// If we've gotten all the pieces, return -1
-		if (slice >= maxSlices)
-			return -1;
+		digest.update(data);
+		hashedSlices++;
+	}
 
-		loadingSlices.set(slice);
-		final int sl2 = slice;
-		loadingTasks[slice] = new TimerTask() {
-			@Override
-			public void run() {
-				loadingSlices.clear(sl2);
-			}
-		};
-		loadingTimer.schedule(loadingTasks[slice],30000);
+	/**
+	 * @return Whether every slice has gone through the running hash
+	 */
+	public boolean isHashed() {
+		return digest != null && hashedSlices == maxSlices;
+	}
+
+	/**
+	 * @return The running hash, or null if nothing has been hashed yet
+	 */
+	public MessageDigest getDigest() {
+		return hashedSlices == 0 ? null : digest;
+	}
+
+	/**
+	 * @return Number of bytes at the start of the piece that the running hash covers
+	 */
+	public int getHashedBytes() {
+		return Math.min(size, hashedSlices * SLICE_SIZE);
+	}
+
+	/**
+	 * Drops the running hash, e.g. once the piece has been checked.
+	 */
+	public void resetHash() {
+		digest = null;
+		hashedSlices = 0;
+	}
+
+	/**
+	 * Finds a slice that has been neither downloaded nor requested and marks
+	 * it as requested.  Safe to call from several threads at once: each slice
+	 * is handed out once until it arrives or its request times out.
+	 *
+	 * @return The slice, or -1 if there is none
+	 */
+	public int getNextSlice() {
+		int slice = slices.claim(0);
+		if (slice < 0)
+			return -1;
+		SliceTimeout st = new SliceTimeout(slice);
+		SliceTimeout old = loadingTimeouts.getAndSet(slice, st);
+		if (old != null)
+			old.cancel();
+		st.timeout = timeouts.schedule(st, SLICE_TIMEOUT);
 		return slice;
 	}
+	/**
+	 * Finds a slice that has not been downloaded, whether or not it has
+	 * already been requested.  Used in endgame, where the remaining slices
+	 * are requested from several peers at once.  Does not mark anything.
+	 *
+	 * @param from First slice to consider
+	 * @return The slice, or -1 if there is none
+	 */
+	public int getMissingSlice(int from) {
+		return slices.nextMissing(from);
+	}
+
+	/**
+	 * @return Whether any slice is neither downloaded nor currently requested
+	 */
+	public boolean hasFreeSlice() {
+		return slices.hasFree();
+	}
+
 	public boolean isLoadingSlices() {
-		return !loadingSlices.isEmpty();
+		return slices.isLoadingAny();
 	}
 }
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks completed pieces against their hashes on worker threads, so the
+ * Torrent run loop never stops to hash a piece.  If the piece has a running
+ * hash of the slices that arrived in order, only the rest of the piece is
+ * read back.  Results are queued and the Torrent is woken up to apply them.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class PieceHasher {
+
+	public static final int THREADS = Integer.getInteger("rubt.hashThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+	/**
+	 * Outcome of checking one piece.
+	 */
+	public static class Result {
+		public final Piece piece;
+		public final boolean valid;
+
+		public Result(Piece piece, boolean valid) {
+			this.piece = piece;
+			this.valid = valid;
+		}
+	}
+
+	private PieceStorage storage;
+	private Runnable onResult;
+	private ExecutorService workers;
+	private ConcurrentLinkedQueue<Result> results = new ConcurrentLinkedQueue<Result>();
+	// Set by shutdown().  The workers are never interrupted, since interrupting a
+	// FileChannel read closes the channel, and the storage's channel is shared.
+	private volatile boolean cancelled = false;
+
+	// Each worker thread hashes with its own digest and read buffer.
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(PieceStorage.HASH_CHUNK);
+		}
+	};
+
+	/**
+	 * @param storage Where the pieces' data is read from
+	 * @param onResult Called on a worker thread after each result is queued
+	 */
+	public PieceHasher(PieceStorage storage, Runnable onResult) {
+		this.storage = storage;
+		this.onResult = onResult;
+		this.workers = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			private int n = 0;
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Hasher " + n++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Queues a piece whose slices are all in storage to be checked.
+	 *
+	 * @param piece The piece
+	 */
+	public void submit(final Piece piece) {
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (cancelled)
+					return;
+				boolean valid = false;
+				try {
+					// The Torrent leaves the piece alone until the result is back, so its digest is ours.
+					MessageDigest md = piece.getDigest();
+					int from = piece.getHashedBytes();
+					if (md == null) {
+						md = digests.get();
+						md.reset();
+						from = 0;
+					}
+					storage.update(piece.getIndex(), from, piece.getSize() - from, md, buffers.get());
+					valid = Arrays.equals(md.digest(), piece.getHash());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				results.add(new Result(piece, valid));
+				onResult.run();
+			}
+		});
+	}
+
+	/**
+	 * @return The next finished result, or null if there is none
+	 */
+	public Result poll() {
+		return results.poll();
+	}
+
+	/**
+	 * Stops the workers, abandoning pieces that have not been started.
+	 * Pieces being hashed are finished, so that nothing reads from the
+	 * storage once this returns.
+	 */
+	public void shutdown() {
+		cancelled = true;
+		workers.shutdown();
+		try {
+			workers.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
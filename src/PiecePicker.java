@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Rarest-first piece selection.  Keeps a count of how many peers have each
+ * piece, updated as Bitfield and Have messages come in, and keeps the pieces
+ * we still want in one linked list per count.  Choosing a piece for a peer
+ * walks the lists from rarest to most common and usually stops at the first
+ * few entries, instead of recounting every peer's pieces on each call.
+ *
+ * Only used from the Torrent run loop, so it does no locking of its own.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class PiecePicker {
+
+	private static final int NONE = -1;
+
+	private ArrayList<Piece> pieces;
+	private int[] availability;
+	private BitSet wanted;
+
+	// Doubly linked lists threaded through next/prev, one per availability count.
+	private int[] heads = new int[8];
+	private int[] next;
+	private int[] prev;
+
+	/**
+	 * Creates a picker that wants every piece and knows of no peers yet.
+	 *
+	 * @param pieces Pieces of the torrent, in index order
+	 */
+	public PiecePicker(ArrayList<Piece> pieces) {
+		this.pieces = pieces;
+		this.availability = new int[pieces.size()];
+		this.wanted = new BitSet(pieces.size());
+		this.next = new int[pieces.size()];
+		this.prev = new int[pieces.size()];
+		Arrays.fill(heads, NONE);
+		for (int i = pieces.size() - 1; i >= 0; --i) {
+			wanted.set(i);
+			link(i);
+		}
+	}
+
+	/**
+	 * Records that a peer has a piece.
+	 *
+	 * @param index Index of the piece
+	 */
+	public void addAvailable(int index) {
+		if (index < 0 || index >= availability.length)
+			return;
+		if (wanted.get(index)) {
+			unlink(index);
+			availability[index]++;
+			link(index);
+		} else {
+			availability[index]++;
+		}
+	}
+
+	/**
+	 * Records that a peer no longer has a piece, e.g. because it went away.
+	 *
+	 * @param index Index of the piece
+	 */
+	public void removeAvailable(int index) {
+		if (index < 0 || index >= availability.length || availability[index] == 0)
+			return;
+		if (wanted.get(index)) {
+			unlink(index);
+			availability[index]--;
+			link(index);
+		} else {
+			availability[index]--;
+		}
+	}
+
+	/**
+	 * Records every piece of a peer's bitfield.
+	 *
+	 * @param available Pieces the peer has
+	 */
+	public void addAvailable(BitSet available) {
+		for (int i = available.nextSetBit(0); i >= 0 && i < availability.length; i = available.nextSetBit(i + 1)) {
+			addAvailable(i);
+		}
+	}
+
+	/**
+	 * Forgets every piece of a peer's bitfield.
+	 *
+	 * @param available Pieces the peer had
+	 */
+	public void removeAvailable(BitSet available) {
+		for (int i = available.nextSetBit(0); i >= 0 && i < availability.length; i = available.nextSetBit(i + 1)) {
+			removeAvailable(i);
+		}
+	}
+
+	/**
+	 * Marks whether we still need to download a piece.
+	 *
+	 * @param index Index of the piece
+	 * @param want False once the piece is complete, true if it has to be downloaded (again)
+	 */
+	public void setWanted(int index, boolean want) {
+		if (wanted.get(index) == want)
+			return;
+		wanted.set(index, want);
+		if (want)
+			link(index);
+		else
+			unlink(index);
+	}
+
+	/**
+	 * @param index Index of the piece
+	 * @return How many peers are known to have the piece
+	 */
+	public int getAvailability(int index) {
+		return availability[index];
+	}
+
+	/**
+	 * Finds the rarest piece that we want, that the peer has and that still
+	 * has slices nobody has requested.
+	 *
+	 * @param pr The peer to download from
+	 * @return The chosen piece, or null if the peer has nothing useful
+	 */
+	public Piece choose(Peer pr) {
+		// Any piece the peer has is available from at least one peer.
+		for (int count = 1; count < heads.length; ++count) {
+			for (int i = heads[count]; i != NONE; i = next[i]) {
+				if (pr.canGetPiece(i) && pieces.get(i).hasFreeSlice()) {
+					return pieces.get(i);
+				}
+			}
+		}
+		return null;
+	}
+
+	private void link(int index) {
+		int count = availability[index];
+		if (count >= heads.length) {
+			int old = heads.length;
+			heads = Arrays.copyOf(heads, Math.max(count + 1, old * 2));
+			Arrays.fill(heads, old, heads.length, NONE);
+		}
+		prev[index] = NONE;
+		next[index] = heads[count];
+		if (heads[count] != NONE)
+			prev[heads[count]] = index;
+		heads[count] = index;
+	}
+
+	private void unlink(int index) {
+		if (prev[index] != NONE)
+			next[prev[index]] = next[index];
+		else
+			heads[availability[index]] = next[index];
+		if (next[index] != NONE)
+			prev[next[index]] = prev[index];
+	}
+}
@@ -0,0 +1,135 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Times PiecePicker against counting every peer's pieces on each choice,
+ * which is what Torrent did before, and checks that both pick pieces of the
+ * same rarity.  Each peer has every piece with even odds, plus a few rare
+ * pieces that only one peer has, so there is a rarest piece to find.
+ *
+ * Usage: java PiecePickerBench [pieces] [peers]
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class PiecePickerBench {
+
+	public static void main(String[] args) {
+		int pieceCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int peerCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		Random random = new Random(352);
+
+		ArrayList<Piece> pieces = new ArrayList<Piece>();
+		for (int i = 0; i < pieceCount; ++i)
+			pieces.add(new Piece(i, 256 * 1024, ByteBuffer.allocate(20), null, null));
+		ArrayList<Peer> peers = new ArrayList<Peer>();
+		for (int p = 0; p < peerCount; ++p) {
+			BitSet has = new BitSet(pieceCount);
+			for (int i = 0; i < pieceCount; ++i) {
+				if (random.nextBoolean())
+					has.set(i);
+			}
+			Peer peer = new Peer(null, null);
+			peer.setAvailablePieces(has);
+			peers.add(peer);
+		}
+		// A rare piece per ten peers, each held by only that peer.
+		for (int p = 0; p < peerCount; p += 10) {
+			int rare = random.nextInt(pieceCount);
+			for (Peer peer : peers)
+				peer.getAvailablePieces().clear(rare);
+			peers.get(p).setPieceAvailable(rare);
+		}
+
+		long t = System.nanoTime();
+		PiecePicker picker = new PiecePicker(pieces);
+		for (Peer peer : peers)
+			picker.addAvailable(peer.getAvailablePieces());
+		long bitfields = System.nanoTime() - t;
+
+		// Warm both up before timing them.
+		for (int i = 0; i < 200; ++i) {
+			picker.choose(peers.get(i % peerCount));
+			recount(pieces, peers, peers.get(i % peerCount));
+		}
+
+		int rounds = 20 * peerCount;
+		t = System.nanoTime();
+		for (int i = 0; i < rounds; ++i)
+			picker.choose(peers.get(i % peerCount));
+		long picked = System.nanoTime() - t;
+
+		int recountRounds = Math.max(peerCount / 10, 1);
+		t = System.nanoTime();
+		for (int i = 0; i < recountRounds; ++i)
+			recount(pieces, peers, peers.get(i % peerCount));
+		long recounted = System.nanoTime() - t;
+
+		for (int p = 0; p < peerCount; ++p) {
+			Peer peer = peers.get(p);
+			Piece mine = picker.choose(peer);
+			Piece theirs = recount(pieces, peers, peer);
+			if (mine == null || theirs == null || count(peers, mine.getIndex()) != count(peers, theirs.getIndex())) {
+				System.out.println("Peer " + p + ": picker chose " + describe(peers, mine) + ", recount " + describe(peers, theirs));
+				System.exit(1);
+			}
+		}
+
+		// Haves as the run loop would see them, then every peer leaving.
+		t = System.nanoTime();
+		for (int i = 0; i < rounds; ++i)
+			picker.addAvailable(random.nextInt(pieceCount));
+		long haves = System.nanoTime() - t;
+
+		t = System.nanoTime();
+		for (Peer peer : peers)
+			picker.removeAvailable(peer.getAvailablePieces());
+		long leaving = System.nanoTime() - t;
+
+		System.out.println(pieceCount + " pieces, " + peerCount + " peers");
+		System.out.println("bitfields:  " + bitfields / peerCount / 1000 + " us per peer");
+		System.out.println("haves:      " + haves / rounds + " ns each");
+		System.out.println("leaving:    " + leaving / peerCount / 1000 + " us per peer");
+		System.out.println("picker:     " + picked / rounds + " ns per choice");
+		System.out.println("recount:    " + recounted / recountRounds + " ns per choice");
+		System.out.println("ok");
+	}
+
+	/**
+	 * The old Torrent.choosePiece: counts every peer against every piece.
+	 */
+	private static Piece recount(ArrayList<Piece> pieces, ArrayList<Peer> peers, Peer pr) {
+		int[] pieceRanks = new int[pieces.size()];
+		for (Piece piece : pieces) {
+			pieceRanks[piece.getIndex()] = pr.canGetPiece(piece.getIndex()) ? 0 : -1;
+		}
+		for (Peer peer : peers) {
+			for (Piece piece : pieces) {
+				if (peer.canGetPiece(piece.getIndex()) && pieceRanks[piece.getIndex()] != -1)
+					pieceRanks[piece.getIndex()]++;
+			}
+		}
+		int least = -1;
+		for (int i = 0; i < pieceRanks.length; i++) {
+			if (pieceRanks[i] != -1 && (least == -1 || pieceRanks[i] < pieceRanks[least]))
+				least = i;
+		}
+		return least == -1 ? null : pieces.get(least);
+	}
+
+	private static int count(ArrayList<Peer> peers, int index) {
+		int n = 0;
+		for (Peer peer : peers) {
+			if (peer.canGetPiece(index))
+				n++;
+		}
+		return n;
+	}
+
+	private static String describe(ArrayList<Peer> peers, Piece piece) {
+		return piece == null ? "nothing" : "piece " + piece.getIndex() + " held by " + count(peers, piece.getIndex());
+	}
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * The file a torrent is downloaded into.  Blocks are written straight to
+ * their place in the file as they arrive and read back from it for hashing
+ * and uploading, so no piece data is kept on the heap.  Offsets are longs;
+ * positional FileChannel reads and writes may be used from several threads
+ * at once.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class PieceStorage {
+
+	public static final int HASH_CHUNK = 1 << 16;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private int pieceLength;
+	private long length;
+
+	/**
+	 * Opens (creating if necessary) the file and sizes it for the torrent.
+	 *
+	 * @param fileName Path of the file
+	 * @param length Total length of the torrent
+	 * @param pieceLength Length of every piece but the last
+	 * @throws IOException
+	 */
+	public PieceStorage(String fileName, long length, int pieceLength) throws IOException {
+		this.file = new RandomAccessFile(fileName, "rw");
+		this.channel = file.getChannel();
+		this.pieceLength = pieceLength;
+		this.length = length;
+		if (file.length() != length)
+			file.setLength(length);
+	}
+
+	/**
+	 * @param index Index of a piece
+	 * @param begin Offset within the piece
+	 * @return Offset within the file
+	 */
+	public long offset(int index, int begin) {
+		return (long) index * pieceLength + begin;
+	}
+
+	/**
+	 * Writes a received block to its place in the file.
+	 *
+	 * @param index Index of the piece
+	 * @param begin Offset of the block within the piece
+	 * @param block Block data, from position to limit.  Its position is advanced.
+	 * @throws IOException If the block does not lie within the piece, or the write fails
+	 */
+	public void writeBlock(int index, int begin, ByteBuffer block) throws IOException {
+		long pos = offset(index, begin);
+		if (index < 0 || begin < 0 || (long) begin + block.remaining() > pieceLength || pos + block.remaining() > length)
+			throw new IOException("Block " + index + "/" + begin + "+" + block.remaining() + " is outside its piece");
+		while (block.hasRemaining()) {
+			pos += channel.write(block, pos);
+		}
+	}
+
+	/**
+	 * Reads a block back from the file.
+	 *
+	 * @param index Index of the piece
+	 * @param begin Offset of the block within the piece
+	 * @param length Length of the block
+	 * @return A buffer holding the block
+	 * @throws IOException
+	 */
+	public ByteBuffer readBlock(int index, int begin, int length) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(length);
+		readFully(bb, offset(index, begin));
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * Sends part of the file to a channel without copying it through the
+	 * heap (sendfile where the OS has it).
+	 *
+	 * @param position Offset within the file, see offset()
+	 * @param count Maximum number of bytes to send
+	 * @param target Where to send them
+	 * @return Number of bytes sent, possibly 0 if a non-blocking target is full
+	 * @throws IOException
+	 */
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		return channel.transferTo(position, count, target);
+	}
+
+	/**
+	 * Computes the SHA-1 of a piece as it is stored in the file.
+	 *
+	 * @param index Index of the piece
+	 * @param size Size of the piece
+	 * @param md Digest to use.  It is reset first.
+	 * @return The piece's hash
+	 * @throws IOException
+	 */
+	public byte[] digest(int index, int size, MessageDigest md) throws IOException {
+		return digest(index, size, md, ByteBuffer.allocate(Math.min(size, HASH_CHUNK)));
+	}
+
+	/**
+	 * Computes the SHA-1 of a piece as it is stored in the file, reading it
+	 * through a buffer the caller keeps around.
+	 *
+	 * @param index Index of the piece
+	 * @param size Size of the piece
+	 * @param md Digest to use.  It is reset first.
+	 * @param bb Heap buffer to read through
+	 * @return The piece's hash
+	 * @throws IOException
+	 */
+	public byte[] digest(int index, int size, MessageDigest md, ByteBuffer bb) throws IOException {
+		md.reset();
+		update(index, 0, size, md, bb);
+		return md.digest();
+	}
+
+	/**
+	 * Feeds part of a piece, as it is stored in the file, into a digest.
+	 *
+	 * @param index Index of the piece
+	 * @param begin Offset within the piece to start at
+	 * @param length Number of bytes to feed
+	 * @param md Digest to update
+	 * @param bb Heap buffer to read through
+	 * @throws IOException
+	 */
+	public void update(int index, int begin, int length, MessageDigest md, ByteBuffer bb) throws IOException {
+		long pos = offset(index, begin);
+		for (int done = 0; done < length; ) {
+			bb.clear().limit(Math.min(bb.capacity(), length - done));
+			readFully(bb, pos + done);
+			done += bb.position();
+			md.update(bb.array(), 0, bb.position());
+		}
+	}
+
+	private void readFully(ByteBuffer bb, long pos) throws IOException {
+		while (bb.hasRemaining()) {
+			int n = channel.read(bb, pos);
+			if (n < 0)
+				throw new IOException("Unexpected end of file at " + pos);
+			pos += n;
+		}
+	}
+
+	/**
+	 * @return Current size of the file
+	 * @throws IOException
+	 */
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	/**
+	 * Makes sure everything written so far has reached the disk.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		channel.force(false);
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+}
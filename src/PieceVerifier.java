@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks which pieces of an existing file are already good, hashing pieces
+ * on several threads at once.  Each worker keeps its own digest and read
+ * buffer and claims the next unchecked piece until none are left.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class PieceVerifier {
+
+	public static final int THREADS = Integer.getInteger("rubt.verifyThreads", Runtime.getRuntime().availableProcessors());
+
+	private PieceStorage storage;
+	private ArrayList<Piece> pieces;
+	private boolean[] valid;
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicInteger verified = new AtomicInteger();
+	private volatile boolean cancelled = false;
+
+	public PieceVerifier(PieceStorage storage, ArrayList<Piece> pieces) {
+		this.storage = storage;
+		this.pieces = pieces;
+		this.valid = new boolean[pieces.size()];
+	}
+
+	/**
+	 * Hashes every piece, printing progress while it waits.
+	 *
+	 * @return The pieces whose hashes matched, or null if cancelled
+	 * @throws InterruptedException
+	 */
+	public BitSet verify() throws InterruptedException {
+		ExecutorService workers = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			private int n = 0;
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Verifier " + n++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for (int i = 0; i < THREADS; ++i) {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			});
+		}
+		workers.shutdown();
+		while (!workers.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+			System.out.print("\rVerifying " + getProgress() + "%            ");
+		}
+		if (cancelled)
+			return null;
+		BitSet good = new BitSet(pieces.size());
+		for (int i = 0; i < valid.length; ++i) {
+			if (valid[i])
+				good.set(i);
+		}
+		return good;
+	}
+
+	private void work() {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(PieceStorage.HASH_CHUNK);
+		int i;
+		while (!cancelled && (i = next.getAndIncrement()) < pieces.size()) {
+			Piece pc = pieces.get(i);
+			try {
+				valid[i] = Arrays.equals(storage.digest(i, pc.getSize(), md, bb), pc.getHash());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			verified.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Makes verify() stop early and return null.  May be called from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return Number of pieces hashed so far
+	 */
+	public int getVerified() {
+		return verified.get();
+	}
+
+	/**
+	 * @return Percentage of pieces hashed so far
+	 */
+	public int getProgress() {
+		return pieces.isEmpty() ? 100 : 100 * verified.get() / pieces.size();
+	}
+}
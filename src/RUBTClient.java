@@ -44,13 +44,16 @@ public class RUBTClient {
 		file.close();
 		TorrentInfo ti = new TorrentInfo(byteFile);
 		Torrent tt = new Torrent(ti, args[1]);
-		(new Thread(tt)).start();
+		Thread torrentThread = VirtualThreads.start(tt, "Torrent");
 
 		Scanner sc = new Scanner(System.in);
         System.out.println("Please type 'q' to quit");
         while(true) {
             if (sc.nextLine().equals("q")) {
                 tt.stop();
+                // Virtual threads are daemons, so the JVM would not wait for
+                // the torrent to save its state and tell the tracker.
+                torrentThread.join();
                 return;
              }
             else
@@ -0,0 +1,68 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bytes per second over a rolling window, kept as a ring of fixed-length
+ * time buckets.  Updates are lock-free so that I/O threads can count bytes
+ * while other threads read the rate; a byte added at the instant a bucket
+ * is recycled may be dropped, which is fine for an estimate.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class RateEstimator {
+
+	private static final int BUCKETS = 8;
+	private static final long BUCKET_MS = 500;
+
+	private final AtomicLongArray bytes = new AtomicLongArray(BUCKETS);
+	// Which bucket number (time / BUCKET_MS) each slot currently holds.
+	private final AtomicLongArray stamps = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final long start;
+
+	public RateEstimator() {
+		this.start = System.currentTimeMillis();
+	}
+
+	/**
+	 * Counts transferred bytes.
+	 *
+	 * @param n Number of bytes
+	 * @param now Current time in milliseconds
+	 */
+	public void add(long n, long now) {
+		long bucket = now / BUCKET_MS;
+		int slot = (int) (bucket % BUCKETS);
+		long stamp = stamps.get(slot);
+		if (stamp != bucket && stamps.compareAndSet(slot, stamp, bucket)) {
+			bytes.set(slot, 0);
+		}
+		bytes.addAndGet(slot, n);
+		total.addAndGet(n);
+	}
+
+	/**
+	 * @param now Current time in milliseconds
+	 * @return Bytes per second over the last few seconds
+	 */
+	public long getRate(long now) {
+		long bucket = now / BUCKET_MS;
+		long sum = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			if (bucket - stamps.get(i) < BUCKETS) {
+				sum += bytes.get(i);
+			}
+		}
+		long window = Math.min((BUCKETS - 1) * BUCKET_MS + now % BUCKET_MS, now - start);
+		return window <= 0 ? 0 : sum * 1000 / window;
+	}
+
+	/**
+	 * @return Bytes counted since this estimator was created
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+}
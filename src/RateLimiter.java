@@ -0,0 +1,66 @@
+/**
+ * The token buckets one connection's traffic in one direction is charged
+ * to: the process-wide bucket, the torrent's and the connection's own.  I/O
+ * may go ahead once every bucket has tokens again.
+ *
+ * Limits are set in KB/s with system properties; 0 (the default) means
+ * unlimited:  rubt.maxUpload and rubt.maxDownload for the whole process,
+ * rubt.torrentMaxUpload and rubt.torrentMaxDownload per torrent, and
+ * rubt.peerMaxUpload and rubt.peerMaxDownload per connection.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class RateLimiter {
+
+	public static final TokenBucket GLOBAL_UPLOAD = new TokenBucket(kb("rubt.maxUpload"));
+	public static final TokenBucket GLOBAL_DOWNLOAD = new TokenBucket(kb("rubt.maxDownload"));
+	public static final long TORRENT_UPLOAD = kb("rubt.torrentMaxUpload");
+	public static final long TORRENT_DOWNLOAD = kb("rubt.torrentMaxDownload");
+	public static final long PEER_UPLOAD = kb("rubt.peerMaxUpload");
+	public static final long PEER_DOWNLOAD = kb("rubt.peerMaxDownload");
+
+	private TokenBucket[] buckets;
+
+	/**
+	 * @param buckets Every bucket the traffic counts against
+	 */
+	public RateLimiter(TokenBucket... buckets) {
+		this.buckets = buckets;
+	}
+
+	/**
+	 * @return Milliseconds to wait before the next read or write, 0 if it may happen now
+	 */
+	public long delay() {
+		return delay(System.nanoTime());
+	}
+
+	/**
+	 * @param now The time in nanoseconds, on the clock the buckets were made with
+	 * @return Milliseconds to wait before the next read or write, 0 if it may happen now
+	 */
+	long delay(long now) {
+		long wait = 0;
+		for (TokenBucket b : buckets) {
+			wait = Math.max(wait, b.delay(now));
+		}
+		return wait;
+	}
+
+	/**
+	 * Counts transferred bytes against every bucket.
+	 *
+	 * @param n Number of bytes
+	 */
+	public void charge(long n) {
+		for (TokenBucket b : buckets) {
+			b.charge(n);
+		}
+	}
+
+	private static long kb(String property) {
+		return Long.getLong(property, 0) * 1024;
+	}
+}
@@ -0,0 +1,155 @@
+import java.util.Random;
+
+/**
+ * Drives TokenBucket and RateLimiter with a simulated clock, the way the
+ * blocking I/O threads use them: wait out the delay, move a chunk of bytes,
+ * charge it, repeat.  The link itself is fast, so the buckets are all that
+ * hold the traffic back.  Checks that a lone bucket holds its rate, that
+ * the smallest of several caps wins, that connections sharing a bucket stay
+ * under it together and under their own caps each, and that an unlimited
+ * bucket never makes anyone wait.  A connection that goes quiet now and
+ * then must not save up more than a burst for when it comes back.  Exits
+ * with status 1 if an achieved rate is off by more than the tolerance.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class RateLimiterCheck {
+
+	private static final long NANOS = 1000000000L;
+	private static final long SECONDS = 120;
+	// The first burst and the last chunk's overshoot are spread over the whole run.
+	private static final double TOLERANCE = 0.05;
+	// How fast the simulated link moves bytes when nothing holds it back.
+	private static final long LINK_RATE = 1L << 30;
+	// With gaps, connections go quiet for the first half of every period.
+	private static final long PERIOD = 20;
+
+	public static void main(String[] args) {
+		long[] rates = {8 * 1024, 100 * 1024, 1024 * 1024, 40 * 1024 * 1024};
+		for (long rate : rates) {
+			long start = 0;
+			RateLimiter limiter = new RateLimiter(new TokenBucket(rate, start));
+			long[] peak = new long[1];
+			long[] sent = simulate(new RateLimiter[]{limiter}, start, false, peak);
+			near(sent[0], rate, "one bucket at " + rate / 1024 + " KB/s");
+
+			// Half the time is spent sending, and each quiet spell may earn one burst and a chunk's overshoot.
+			sent = simulate(new RateLimiter[]{new RateLimiter(new TokenBucket(rate, start))}, start, true, peak);
+			long extra = Math.max(rate / 4, Piece.SLICE_SIZE) + Piece.SLICE_SIZE + 13;
+			long most = rate * SECONDS / 2 + SECONDS / PERIOD * extra;
+			System.out.println("one bucket at " + rate / 1024 + " KB/s with gaps: " + sent[0] / 1024 + " KB, at most " + most / 1024
+					+ " KB; busiest second " + peak[0] / 1024 + " KB, at most " + (rate + extra) / 1024 + " KB");
+			check(sent[0] <= most && sent[0] >= rate * SECONDS / 2 * (1 - TOLERANCE),
+					"one bucket at " + rate / 1024 + " KB/s with gaps holds its rate while sending");
+			check(peak[0] <= rate + extra, "one bucket at " + rate / 1024 + " KB/s saves up no more than a burst while quiet");
+		}
+
+		// Global, torrent and peer caps on one connection: the torrent's is the smallest.
+		long start = 5 * NANOS; // The clock need not start at 0.
+		RateLimiter nested = new RateLimiter(new TokenBucket(2048 * 1024, start), new TokenBucket(500 * 1024, start),
+				new TokenBucket(0, start));
+		near(simulate(new RateLimiter[]{nested}, start, false, new long[1])[0], 500 * 1024, "nested caps, the smallest winning");
+
+		// Four connections sharing a torrent cap that is below the sum of their own caps.
+		shared(400 * 1024, 150 * 1024, true);
+		// And above it, so each connection's own cap is what holds it back.
+		shared(1024 * 1024, 150 * 1024, false);
+
+		RateLimiter unlimited = new RateLimiter(new TokenBucket(0, 0), new TokenBucket(0, 0));
+		for (int i = 0; i < 1000; ++i) {
+			check(unlimited.delay(i * 1000L) == 0, "an unlimited bucket never makes anyone wait");
+			unlimited.charge(1 << 20);
+		}
+		System.out.println("ok");
+	}
+
+	private static void shared(long torrentRate, long peerRate, boolean torrentBound) {
+		long start = 0;
+		TokenBucket torrent = new TokenBucket(torrentRate, start);
+		RateLimiter[] limiters = new RateLimiter[4];
+		for (int i = 0; i < limiters.length; ++i)
+			limiters[i] = new RateLimiter(torrent, new TokenBucket(peerRate, start));
+		long[] sent = simulate(limiters, start, false, new long[1]);
+		long total = 0;
+		for (int i = 0; i < sent.length; ++i) {
+			total += sent[i];
+			String what = limiters.length + " connections at " + peerRate / 1024 + " KB/s sharing " + torrentRate / 1024
+					+ " KB/s, connection " + i;
+			if (torrentBound)
+				check(rate(sent[i]) <= peerRate * (1 + TOLERANCE), what + " stays under its own cap");
+			else
+				near(sent[i], peerRate, what);
+		}
+		String what = limiters.length + " connections at " + peerRate / 1024 + " KB/s sharing " + torrentRate / 1024 + " KB/s";
+		if (torrentBound)
+			near(total, torrentRate, what);
+		else
+			check(rate(total) <= torrentRate * (1 + TOLERANCE), what + " stay under the shared cap");
+	}
+
+	/**
+	 * Runs the connections for SECONDS of simulated time.  Each one moves a
+	 * chunk of up to a block and its header whenever its limiter lets it.
+	 *
+	 * @param gaps Whether the connections go quiet for half of every PERIOD
+	 * @param peak Set to the most bytes all connections moved in any one second
+	 * @return Bytes each connection moved
+	 */
+	private static long[] simulate(RateLimiter[] limiters, long start, boolean gaps, long[] peak) {
+		Random random = new Random(352);
+		long[] sent = new long[limiters.length];
+		long[] ready = new long[limiters.length];
+		for (int i = 0; i < ready.length; ++i)
+			ready[i] = start;
+		long end = start + SECONDS * NANOS;
+		long[] perSecond = new long[(int) SECONDS];
+		peak[0] = 0;
+		while (true) {
+			int next = 0;
+			for (int i = 1; i < ready.length; ++i) {
+				if (ready[i] < ready[next])
+					next = i;
+			}
+			long now = ready[next];
+			if (now >= end) {
+				for (long bytes : perSecond)
+					peak[0] = Math.max(peak[0], bytes);
+				return sent;
+			}
+			long second = (now - start) / NANOS;
+			if (gaps && second % PERIOD < PERIOD / 2) {
+				ready[next] = start + (second - second % PERIOD + PERIOD / 2) * NANOS;
+				continue;
+			}
+			long wait = limiters[next].delay(now);
+			if (wait > 0) {
+				ready[next] = now + wait * 1000000;
+				continue;
+			}
+			int n = 1 + random.nextInt(Piece.SLICE_SIZE + 13);
+			limiters[next].charge(n);
+			sent[next] += n;
+			perSecond[(int) second] += n;
+			ready[next] = now + n * NANOS / LINK_RATE;
+		}
+	}
+
+	private static long rate(long bytes) {
+		return bytes / SECONDS;
+	}
+
+	private static void near(long bytes, long cap, String what) {
+		long rate = rate(bytes);
+		System.out.println(what + ": " + rate / 1024 + " KB/s, " + String.format("%+.1f", 100.0 * (rate - cap) / cap) + "%");
+		check(Math.abs(rate - cap) <= cap * TOLERANCE, what + " is within " + Math.round(100 * TOLERANCE) + "% of the cap");
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.out.println("FAILED: " + what);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Remembers which pieces and slices of a download are on disk, so a restart
+ * can skip hashing the whole file.  It is kept next to the data file as
+ * name.resume and records the data file's size and modification time; if
+ * either has changed since it was written, it is not trusted.
+ *
+ * The data file only ever gains good data, so a resume file that is a little
+ * out of date just makes us download a few slices again.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class ResumeFile {
+
+	private static final int MAGIC = 0x45574f4b; // EWOK
+	private static final int VERSION = 1;
+
+	private File file;
+	private File dataFile;
+
+	/**
+	 * @param dataFileName Path of the file the torrent is downloaded into
+	 */
+	public ResumeFile(String dataFileName) {
+		this.dataFile = new File(dataFileName);
+		this.file = new File(dataFileName + ".resume");
+	}
+
+	/**
+	 * Writes the current state.  The data file must not be written to while
+	 * this runs, and should have been flushed.
+	 *
+	 * @param infoHash Info hash of the torrent
+	 * @param pieces The torrent's pieces; the slices of incomplete ones are saved
+	 * @param have Pieces we have verified
+	 * @throws IOException
+	 */
+	public void save(byte[] infoHash, ArrayList<Piece> pieces, BitSet have) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(infoHash);
+			out.writeLong(dataFile.length());
+			out.writeLong(dataFile.lastModified());
+			out.writeInt(pieces.size());
+			writeBits(out, have);
+			for (Piece pc : pieces) {
+				if (have.get(pc.getIndex()))
+					continue;
+				BitSet slices = pc.getSlices();
+				if (slices.isEmpty())
+					continue;
+				out.writeInt(pc.getIndex());
+				writeBits(out, slices);
+			}
+			out.writeInt(-1);
+		} finally {
+			out.close();
+		}
+		// Replace the old file in one step so a crash never leaves half of one behind.
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not replace " + file);
+		}
+	}
+
+	/**
+	 * Reads the saved state if it still matches the data file.  Slices of
+	 * incomplete pieces are restored into the pieces directly.
+	 *
+	 * @param infoHash Info hash of the torrent
+	 * @param pieces The torrent's pieces
+	 * @return The pieces we have, or null if there is no usable resume file
+	 */
+	public BitSet load(byte[] infoHash, ArrayList<Piece> pieces) {
+		if (!file.exists())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			byte[] hash = new byte[infoHash.length];
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			in.readFully(hash);
+			if (!Arrays.equals(hash, infoHash) || in.readLong() != dataFile.length()
+					|| in.readLong() != dataFile.lastModified() || in.readInt() != pieces.size())
+				return null;
+			BitSet have = readBits(in);
+			if (have.length() > pieces.size()) {
+				System.out.println("Ignoring " + file + ": it has pieces past the end of the torrent");
+				return null;
+			}
+			ArrayList<BitSet> partial = new ArrayList<BitSet>();
+			for (int i = 0; i < pieces.size(); ++i)
+				partial.add(null);
+			int index;
+			while ((index = in.readInt()) != -1) {
+				if (index < 0 || index >= pieces.size())
+					return null;
+				partial.set(index, readBits(in));
+			}
+			// Only touch the pieces once the whole file has been read successfully.
+			for (int i = 0; i < pieces.size(); ++i) {
+				if (partial.get(i) != null)
+					pieces.get(i).setSlices(partial.get(i));
+			}
+			return have;
+		} catch (IOException e) {
+			System.out.println("Ignoring unreadable " + file + ": " + e.getMessage());
+			return null;
+		} finally {
+			try {
+				if (in != null) in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void writeBits(DataOutputStream out, BitSet bits) throws IOException {
+		byte[] b = bits.toByteArray();
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static BitSet readBits(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0 || len > (1 << 24))
+			throw new IOException("Bad bitfield length " + len);
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return BitSet.valueOf(b);
+	}
+}
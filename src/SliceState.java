@@ -0,0 +1,165 @@
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Which slices of a piece have arrived and which have been requested, kept
+ * as two bits per slice in an AtomicLongArray.  Since both bits of a slice
+ * live in the same word, every change is a single compare-and-set: a slice
+ * can be claimed by exactly one caller, and a slice that arrives or times out
+ * is never left half updated, whichever threads get there at the same time.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class SliceState {
+
+	private static final int PER_WORD = 32;
+	private static final long DONE = 1;
+	private static final long LOADING = 2;
+
+	private final AtomicLongArray words;
+	private final int count;
+
+	/**
+	 * @param count Number of slices
+	 */
+	public SliceState(int count) {
+		this.count = count;
+		this.words = new AtomicLongArray((count + PER_WORD - 1) / PER_WORD);
+	}
+
+	private static int shift(int slice) {
+		return 2 * (slice % PER_WORD);
+	}
+
+	private long bits(int slice) {
+		return (words.get(slice / PER_WORD) >>> shift(slice)) & (DONE | LOADING);
+	}
+
+	/**
+	 * Marks the first slice that has neither arrived nor been requested as
+	 * requested.
+	 *
+	 * @param from First slice to consider
+	 * @return The slice, or -1 if there is none
+	 */
+	public int claim(int from) {
+		for (int slice = from; slice < count; ++slice) {
+			int w = slice / PER_WORD;
+			long mask = (DONE | LOADING) << shift(slice);
+			long old;
+			while (((old = words.get(w)) & mask) == 0) {
+				if (words.compareAndSet(w, old, old | (LOADING << shift(slice))))
+					return slice;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Marks a slice as arrived and no longer requested.
+	 *
+	 * @param slice The slice
+	 * @return false if it had already arrived
+	 */
+	public boolean complete(int slice) {
+		int w = slice / PER_WORD;
+		long old;
+		do {
+			old = words.get(w);
+			if ((old & (DONE << shift(slice))) != 0)
+				return false;
+		} while (!words.compareAndSet(w, old, (old | (DONE << shift(slice))) & ~(LOADING << shift(slice))));
+		return true;
+	}
+
+	/**
+	 * Gives up on a request, so the slice can be claimed again.
+	 *
+	 * @param slice The slice
+	 * @return false if the slice was not requested
+	 */
+	public boolean expire(int slice) {
+		int w = slice / PER_WORD;
+		long old;
+		do {
+			old = words.get(w);
+			if ((old & (LOADING << shift(slice))) == 0)
+				return false;
+		} while (!words.compareAndSet(w, old, old & ~(LOADING << shift(slice))));
+		return true;
+	}
+
+	public boolean isDone(int slice) {
+		return (bits(slice) & DONE) != 0;
+	}
+
+	public boolean isLoading(int slice) {
+		return (bits(slice) & LOADING) != 0;
+	}
+
+	/**
+	 * @param from First slice to consider
+	 * @return The first slice that has not arrived, requested or not, or -1 if there is none
+	 */
+	public int nextMissing(int from) {
+		for (int slice = from; slice < count; ++slice) {
+			if (!isDone(slice))
+				return slice;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Whether some slice has neither arrived nor been requested
+	 */
+	public boolean hasFree() {
+		for (int slice = 0; slice < count; ++slice) {
+			if (bits(slice) == 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Whether some slice is requested and has not arrived
+	 */
+	public boolean isLoadingAny() {
+		for (int w = 0; w < words.length(); ++w) {
+			if ((words.get(w) & 0xaaaaaaaaaaaaaaaaL) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The slices that have arrived
+	 */
+	public BitSet getDone() {
+		BitSet done = new BitSet(count);
+		for (int slice = 0; slice < count; ++slice) {
+			if (isDone(slice))
+				done.set(slice);
+		}
+		return done;
+	}
+
+	/**
+	 * Replaces the state with the given arrived slices and no requests.  Each
+	 * word changes atomically, but not the whole set, so this is for when
+	 * nobody else is using the piece.
+	 *
+	 * @param done Slices that have arrived
+	 */
+	public void set(BitSet done) {
+		for (int w = 0; w < words.length(); ++w) {
+			long word = 0;
+			for (int i = 0; i < PER_WORD && w * PER_WORD + i < count; ++i) {
+				if (done.get(w * PER_WORD + i))
+					word |= DONE << (2 * i);
+			}
+			words.set(w, word);
+		}
+	}
+}
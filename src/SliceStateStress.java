@@ -0,0 +1,119 @@
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Hammers one SliceState from several threads at once and checks that no
+ * slice is ever claimed by two threads at the same time and that every
+ * slice arrives exactly once.  Each thread claims slices and then, at
+ * random, completes them, lets them time out, or lets them time out and
+ * still delivers them late, which is what happens to a slow peer's blocks.
+ *
+ * Usage: java SliceStateStress [threads] [rounds]
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class SliceStateStress {
+
+	private static final int SLICES = 300;
+	private static final int NOBODY = -1;
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		for (int round = 0; round < rounds; ++round) {
+			String failure = round(threads, round);
+			if (failure != null) {
+				System.out.println("Round " + round + ": " + failure);
+				System.exit(1);
+			}
+		}
+		System.out.println(rounds + " rounds of " + threads + " threads, " + SLICES + " slices: ok");
+	}
+
+	/**
+	 * @return What went wrong, or null if nothing did
+	 */
+	private static String round(int threads, int seed) throws InterruptedException {
+		final SliceState state = new SliceState(SLICES);
+		final AtomicIntegerArray owner = new AtomicIntegerArray(SLICES);
+		final AtomicIntegerArray arrived = new AtomicIntegerArray(SLICES);
+		final AtomicInteger doubleClaims = new AtomicInteger();
+		final AtomicInteger badExpires = new AtomicInteger();
+		for (int i = 0; i < SLICES; ++i)
+			owner.set(i, NOBODY);
+
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t) {
+			final int me = t;
+			final Random random = new Random(seed * 1000L + t);
+			workers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						int slice = state.claim(random.nextInt(4) == 0 ? random.nextInt(SLICES) : 0);
+						if (slice < 0) {
+							if (state.nextMissing(0) < 0)
+								return;
+							Thread.yield(); // Everything left is claimed by someone else.
+							continue;
+						}
+						if (!owner.compareAndSet(slice, NOBODY, me))
+							doubleClaims.incrementAndGet();
+						// Let go of the slice before the state says it is free again.
+						owner.set(slice, NOBODY);
+						switch (random.nextInt(4)) {
+							case 0: // Timed out.
+								if (!state.expire(slice))
+									badExpires.incrementAndGet();
+								break;
+							case 1: // Timed out, but the block turns up anyway.
+								if (!state.expire(slice))
+									badExpires.incrementAndGet();
+								if (state.complete(slice))
+									arrived.incrementAndGet(slice);
+								break;
+							default:
+								if (state.complete(slice))
+									arrived.incrementAndGet(slice);
+						}
+					}
+				}
+			}, "Stress " + t);
+		}
+		// Meanwhile, read the state the way the run loop and the stats do.
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!done.get()) {
+					state.getDone();
+					state.hasFree();
+					state.isLoadingAny();
+				}
+			}
+		}, "Stress reader");
+		reader.start();
+		for (Thread t : workers)
+			t.start();
+		for (Thread t : workers)
+			t.join();
+		done.set(true);
+		reader.join();
+
+		if (doubleClaims.get() != 0)
+			return doubleClaims.get() + " slices claimed twice";
+		if (badExpires.get() != 0)
+			return badExpires.get() + " claimed slices were not loading";
+		for (int i = 0; i < SLICES; ++i) {
+			if (arrived.get(i) != 1)
+				return "slice " + i + " arrived " + arrived.get(i) + " times";
+		}
+		if (state.hasFree() || state.isLoadingAny() || state.getDone().cardinality() != SLICES)
+			return "slices left over: " + state.getDone().cardinality() + " done of " + SLICES;
+		return null;
+	}
+}
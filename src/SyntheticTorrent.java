@@ -0,0 +1,66 @@
+import edu.rutgers.cs.cs352.bt.TorrentInfo;
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Made-up torrents for the checks that need a real Torrent: metainfo for
+ * some bytes, and a file holding them.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class SyntheticTorrent {
+
+	/**
+	 * @param data The torrent's contents
+	 * @param pieceLength Length of every piece but the last
+	 * @return Metainfo for the data, announcing to a tracker nobody listens on
+	 * @throws BencodingException
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 */
+	public static TorrentInfo info(byte[] data, int pieceLength) throws BencodingException, NoSuchAlgorithmException, IOException {
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+		for (int off = 0; off < data.length; off += pieceLength) {
+			md.update(data, off, Math.min(pieceLength, data.length - off));
+			hashes.write(md.digest());
+		}
+		// Bencoder2.encode writes every string as empty, so the metainfo is built by hand.
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		String announce = "http://127.0.0.1:1/announce";
+		write(out, "d8:announce" + announce.length() + ":" + announce + "4:infod6:lengthi" + data.length
+				+ "e4:name9:synthetic12:piece lengthi" + pieceLength + "e6:pieces" + hashes.size() + ":");
+		hashes.writeTo(out);
+		write(out, "ee");
+		return new TorrentInfo(out.toByteArray());
+	}
+
+	/**
+	 * @param data What to put in the file, or null to leave it empty
+	 * @return Path of a new file, deleted when the JVM exits along with the resume file a Torrent may save next to it
+	 * @throws IOException
+	 */
+	public static String file(byte[] data) throws IOException {
+		File file = File.createTempFile("synthetic", ".bin");
+		file.deleteOnExit();
+		new File(file.getPath() + ".resume").deleteOnExit();
+		if (data != null) {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(data);
+			out.close();
+		}
+		return file.getPath();
+	}
+
+	private static void write(ByteArrayOutputStream out, String s) throws IOException {
+		out.write(s.getBytes());
+	}
+}
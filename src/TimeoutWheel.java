@@ -0,0 +1,186 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks after a delay on one shared thread, using a hashed timing wheel:
+ * a ring of buckets, one per tick, that the thread steps through.  A timeout
+ * goes into the bucket its deadline falls in, together with the number of
+ * full turns of the wheel left to wait, so scheduling and cancelling are O(1)
+ * no matter how many timeouts there are.  Deadlines are rounded up to the
+ * next tick.
+ *
+ * Other threads never touch the buckets: new and cancelled timeouts are
+ * handed over through queues and applied by the wheel thread every tick.
+ * Tasks run on the wheel thread, so they must be quick; anything more should
+ * be handed to the thread that owns the data.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class TimeoutWheel implements Runnable {
+
+	private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+
+	/**
+	 * A scheduled task.
+	 */
+	public final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		// Owned by the wheel thread.
+		private long rounds;
+		private int bucket = -1;
+		private Timeout prev, next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Makes sure the task does not run.  May be called from any thread.
+		 *
+		 * @return false if the task has already run or been cancelled
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+			cancelled.add(this);
+			return true;
+		}
+
+		/**
+		 * @return Whether the task has run or is running
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+
+	private final long tick;
+	private final Timeout[] wheel;
+	private final int mask;
+	private final long start = System.currentTimeMillis();
+	private long ticks = 0;
+	private volatile boolean running = true;
+	private Thread thread;
+
+	private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * Creates the wheel and starts its thread.
+	 *
+	 * @param tick Milliseconds per tick, i.e. how precise deadlines are
+	 * @param size Number of buckets, rounded up to a power of two
+	 * @param name Name of the thread
+	 */
+	public TimeoutWheel(long tick, int size, String name) {
+		int n = 1;
+		while (n < size)
+			n <<= 1;
+		this.tick = tick;
+		this.wheel = new Timeout[n];
+		this.mask = n - 1;
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Runs a task once after a delay.  May be called from any thread.
+	 *
+	 * @param task The task
+	 * @param delay Milliseconds to wait
+	 * @return A handle to cancel it with
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		Timeout t = new Timeout(task, System.currentTimeMillis() + Math.max(delay, 0));
+		scheduled.add(t);
+		return t;
+	}
+
+	/**
+	 * Wheel thread loop.  Every tick, applies new and cancelled timeouts and
+	 * runs whatever is due in the current bucket.
+	 */
+	@Override
+	public void run() {
+		while (running) {
+			long wait = start + (ticks + 1) * tick - System.currentTimeMillis();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					continue; // shutdown() interrupts us.
+				}
+			}
+			++ticks;
+			Timeout t;
+			while ((t = cancelled.poll()) != null) {
+				unlink(t);
+			}
+			while ((t = scheduled.poll()) != null) {
+				if (t.state.get() != PENDING)
+					continue;
+				// Round up so nothing runs early; anything already due goes in this tick's bucket.
+				long due = Math.max((t.deadline - start + tick - 1) / tick, ticks);
+				t.rounds = (due - ticks) / wheel.length;
+				link(t, (int) (due & mask));
+			}
+			expire((int) (ticks & mask));
+		}
+	}
+
+	private void expire(int bucket) {
+		Timeout t = wheel[bucket];
+		while (t != null) {
+			Timeout next = t.next;
+			if (t.rounds > 0) {
+				t.rounds--;
+			} else {
+				unlink(t);
+				if (t.state.compareAndSet(PENDING, EXPIRED)) {
+					try {
+						t.task.run();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			t = next;
+		}
+	}
+
+	private void link(Timeout t, int bucket) {
+		t.bucket = bucket;
+		t.prev = null;
+		t.next = wheel[bucket];
+		if (t.next != null)
+			t.next.prev = t;
+		wheel[bucket] = t;
+	}
+
+	private void unlink(Timeout t) {
+		if (t.bucket < 0)
+			return; // Cancelled before it was ever linked.
+		if (t.prev != null)
+			t.prev.next = t.next;
+		else
+			wheel[t.bucket] = t.next;
+		if (t.next != null)
+			t.next.prev = t.prev;
+		t.prev = t.next = null;
+		t.bucket = -1;
+	}
+
+	/**
+	 * Stops the wheel thread.  Timeouts that have not run yet never will.
+	 */
+	public void shutdown() {
+		running = false;
+		thread.interrupt();
+	}
+}
@@ -0,0 +1,102 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that timeouts cost no threads: pieces are made the way Torrent
+ * makes them and every slice is requested, which schedules a timeout per
+ * slice, and the number of live threads must come out the same whether there
+ * are ten pieces or fifty thousand.  Also checks that short timeouts run on
+ * the wheel's thread and not early, and that cancelled ones never run.
+ * Exits with status 1 if anything is wrong.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class TimeoutWheelCheck {
+
+	private static final int[] PIECE_COUNTS = {10, 1000, 50000};
+	private static final int PIECE_SIZE = 256 * 1024;
+
+	public static void main(String[] args) throws InterruptedException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int before = threads.getThreadCount();
+		int[] counts = new int[PIECE_COUNTS.length];
+		for (int c = 0; c < PIECE_COUNTS.length; ++c) {
+			TimeoutWheel timeouts = new TimeoutWheel(100, 512, "Timeouts");
+			Runnable wake = new Runnable() {
+				@Override
+				public void run() {
+				}
+			};
+			long t = System.nanoTime();
+			ArrayList<Piece> pieces = new ArrayList<Piece>();
+			int requested = 0;
+			for (int i = 0; i < PIECE_COUNTS[c]; ++i) {
+				Piece piece = new Piece(i, PIECE_SIZE, ByteBuffer.allocate(20), timeouts, wake);
+				pieces.add(piece);
+				while (piece.getNextSlice() >= 0)
+					++requested;
+			}
+			long took = System.nanoTime() - t;
+			// Let the wheel take in everything that was scheduled.
+			Thread.sleep(300);
+			counts[c] = threads.getThreadCount();
+			System.out.println(PIECE_COUNTS[c] + " pieces, " + requested + " slice timeouts in " + took / 1000000 + " ms: "
+					+ (counts[c] - before) + " more threads");
+			timeouts.shutdown();
+			Thread.sleep(200);
+		}
+		for (int c = 1; c < counts.length; ++c)
+			check(counts[c] == counts[0], "the thread count does not depend on the number of pieces");
+		check(counts[0] == before + 1, "the wheel is the only thread added");
+
+		TimeoutWheel timeouts = new TimeoutWheel(10, 64, "Timeouts");
+		final int n = 1000;
+		final CountDownLatch ran = new CountDownLatch(n / 2);
+		final AtomicInteger wrongThread = new AtomicInteger();
+		final AtomicInteger early = new AtomicInteger();
+		final AtomicInteger cancelledRan = new AtomicInteger();
+		ArrayList<TimeoutWheel.Timeout> toCancel = new ArrayList<TimeoutWheel.Timeout>();
+		for (int i = 0; i < n; ++i) {
+			final long delay = 50 + i % 200;
+			final long due = System.currentTimeMillis() + delay;
+			final boolean keep = i % 2 == 0;
+			TimeoutWheel.Timeout timeout = timeouts.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (!keep)
+						cancelledRan.incrementAndGet();
+					if (!Thread.currentThread().getName().equals("Timeouts"))
+						wrongThread.incrementAndGet();
+					if (System.currentTimeMillis() < due)
+						early.incrementAndGet();
+					ran.countDown();
+				}
+			}, delay);
+			if (!keep)
+				toCancel.add(timeout);
+		}
+		for (TimeoutWheel.Timeout timeout : toCancel)
+			check(timeout.cancel(), "a pending timeout can be cancelled");
+		check(ran.await(5, TimeUnit.SECONDS), "every timeout runs");
+		Thread.sleep(300);
+		check(cancelledRan.get() == 0, "cancelled timeouts do not run");
+		check(wrongThread.get() == 0, "timeouts run on the wheel thread");
+		check(early.get() == 0, "timeouts do not run early");
+		timeouts.shutdown();
+		System.out.println("ok");
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.out.println("FAILED: " + what);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bandwidth cap.  Tokens (bytes) accumulate at the configured rate up to a
+ * burst size and every byte sent or received is charged against them.  A
+ * charge may take the bucket below zero; whoever shares the bucket then waits
+ * until the debt is paid off.  That way callers never have to agree on a
+ * grant before doing I/O, and the bucket needs no lock: refilling and
+ * charging are compare-and-set loops on two AtomicLongs.
+ *
+ * A rate of 0 means unlimited; the bucket then only counts bytes.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class TokenBucket {
+
+	private static final long NANOS = 1000000000L;
+
+	private final long rate;
+	private final long burst;
+	private final AtomicLong tokens;
+	// Time up to which tokens have been credited, in nanoseconds: System.nanoTime() unless simulated.
+	private final AtomicLong stamp;
+	private final RateEstimator actual = new RateEstimator();
+	private final long start = System.currentTimeMillis();
+
+	/**
+	 * @param rate Bytes per second, or 0 for no limit
+	 */
+	public TokenBucket(long rate) {
+		this(rate, System.nanoTime());
+	}
+
+	/**
+	 * @param rate Bytes per second, or 0 for no limit
+	 * @param now The time in nanoseconds, from System.nanoTime() or a simulated clock
+	 */
+	TokenBucket(long rate, long now) {
+		this.rate = rate;
+		this.burst = Math.max(rate / 4, Piece.SLICE_SIZE);
+		this.tokens = new AtomicLong(burst);
+		this.stamp = new AtomicLong(now);
+	}
+
+	/**
+	 * Credits the tokens earned since the last refill.  Only time that
+	 * turned into whole tokens is used up, so slow rates do not lose the
+	 * fractions.
+	 */
+	private void refill(long now) {
+		long last = stamp.get();
+		long earned = (long) ((double) (now - last) * rate / NANOS); // double, so a long idle time cannot overflow
+		if (earned <= 0 || !stamp.compareAndSet(last, last + (long) ((double) earned * NANOS / rate)))
+			return; // Someone else is refilling.
+		long t;
+		do {
+			t = tokens.get();
+		} while (!tokens.compareAndSet(t, Math.min(burst, t + earned)));
+	}
+
+	/**
+	 * Takes bytes that have been transferred out of the bucket.
+	 *
+	 * @param n Number of bytes
+	 */
+	public void charge(long n) {
+		actual.add(n, System.currentTimeMillis());
+		if (rate > 0)
+			tokens.addAndGet(-n);
+	}
+
+	/**
+	 * @return Milliseconds to wait before transferring anything, 0 if tokens are available
+	 */
+	public long delay() {
+		return delay(System.nanoTime());
+	}
+
+	/**
+	 * @param now The time in nanoseconds, on the clock the bucket was made with
+	 * @return Milliseconds to wait before transferring anything, 0 if tokens are available
+	 */
+	long delay(long now) {
+		if (rate == 0)
+			return 0;
+		refill(now);
+		long t = tokens.get();
+		if (t > 0)
+			return 0;
+		return Math.max(1, (1 - t) * 1000 / rate);
+	}
+
+	/**
+	 * @return Configured bytes per second, 0 if unlimited
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return Bytes per second actually transferred over the last few seconds
+	 */
+	public long getActualRate() {
+		return actual.getRate(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return Bytes per second actually transferred since the bucket was created
+	 */
+	public long getAverageRate() {
+		long elapsed = System.currentTimeMillis() - start;
+		return elapsed <= 0 ? 0 : actual.getTotal() * 1000 / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return getAverageRate() / 1024 + " KB/s" + (rate > 0 ? " (limit " + rate / 1024 + " KB/s)" : "");
+	}
+}
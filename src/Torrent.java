@@ -2,13 +2,16 @@ import edu.rutgers.cs.cs352.bt.TorrentInfo;
 import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
 
 import java.io.*;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Represents a torrent object responsible for talking to peers
@@ -23,21 +26,41 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 // TODO: get rid of unnecessary print statements
 public class Torrent implements Runnable {
 
-	private TrackerConnection tracker;
+	private Tracker tracker;
 	private TorrentInfo torrentInfo;
 	private ArrayList<Piece> pieces;
-	private String encodedInfoHash;
-	private RandomAccessFile dataFile;
-	private MappedByteBuffer fileByteBuffer;
+	private PiecePicker picker;
+	private PieceStorage storage;
+	private PieceVerifier verifier;
+	private PieceHasher hasher;
+	private ResumeFile resumeFile;
+	private UploadCache uploadCache;
+	private static final long RESUME_INTERVAL = Integer.getInteger("rubt.resumeInterval", 60) * 1000L;
+	private static final long STATS_INTERVAL = Integer.getInteger("rubt.statsInterval", 60) * 1000L;
+	private BlockPool blockPool = new BlockPool(BlockPool.SIZE, Piece.SLICE_SIZE);
+	private TokenBucket uploadBucket = new TokenBucket(RateLimiter.TORRENT_UPLOAD);
+	private TokenBucket downloadBucket = new TokenBucket(RateLimiter.TORRENT_DOWNLOAD);
 
 	private ConcurrentLinkedQueue<PeerMessage> messages = new ConcurrentLinkedQueue<PeerMessage>();
+	// Slice timeouts, keepalives and the run loop's periodic work all share this.
+	private TimeoutWheel timeouts = new TimeoutWheel(100, 512, "Timeouts");
+	// Work the wheel has handed to the run loop.
+	private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final Runnable wake = new Runnable() {
+		@Override
+		public void run() {
+			wakeup.release();
+		}
+	};
+	// Released whenever there is something for the run loop to do.
+	private final Semaphore wakeup = new Semaphore(0);
 	private String peerId;
-	private HashMap<ByteBuffer,Peer> peers = new HashMap<ByteBuffer, Peer>();
+	// Iterating gives a weakly consistent view, so any thread may look at the
+	// peers while the run loop adds them and changes their state.
+	private ConcurrentHashMap<PeerId,Peer> peers = new ConcurrentHashMap<PeerId, Peer>();
 	private BitSet piecesHad = null;
 
-	private final Object fileLock = new Object();
-	private final Object peerLock = new Object();
-	private boolean running = true;
+	private volatile boolean running = true;
 
 	private int port = 6881;
 
@@ -46,97 +69,118 @@ public class Torrent implements Runnable {
 	private int left = 0;
 	private int minInterval = 0;
 	private int interval = 0;
-	private long lastAnnounce = 0;
 	private String fileName;
 	private boolean sentComplete = false;
 
-	private Timer chokeTimer;
+	// Endgame: every missing slice has been requested, so the remaining ones are
+	// requested from several peers and the losers are sent Cancels.
+	private boolean endgame = false;
+	private long duplicateBlocks = 0;
+	private long wastedBytes = 0;
+
+	private Choker choker = new Choker(Choker.SLOTS, Choker.OPTIMISTIC_INTERVAL, new Random());
+	private boolean seeding = false;
+	private PeerSelector peerSelector;
+	private Thread selectorThread;
+	// Reader threads of the connections in blocking mode.  Only touched by the run loop.
+	private ArrayList<Thread> peerThreads = new ArrayList<Thread>();
+	// Tracker requests can block for a long time, so they get a thread of their own.
+	private ExecutorService trackerThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Tracker");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private final AtomicBoolean announcing = new AtomicBoolean(false);
 
 	public Torrent(TorrentInfo ti, String fileName) {
 		this.torrentInfo = ti;
 		this.fileName = fileName;
-		this.encodedInfoHash = encodeInfoHash(this.torrentInfo.info_hash.array());
 		this.peerId = generateId();
 		this.pieces = generatePieces();
+		this.picker = new PiecePicker(this.pieces);
 		this.left = ti.file_length;
-		this.tracker = new TrackerConnection(this.torrentInfo.announce_url);
+		if ("udp".equals(this.torrentInfo.announce_url.getProtocol()))
+			this.tracker = new UdpTrackerConnection(this.torrentInfo.announce_url);
+		else
+			this.tracker = new TrackerConnection(this.torrentInfo.announce_url);
+		this.resumeFile = new ResumeFile(fileName);
 		try {
-			dataFile = new RandomAccessFile(this.fileName, "rw");
-			fileByteBuffer = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (Integer)torrentInfo.info_map.get(TorrentInfo.KEY_LENGTH));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+			storage = new PieceStorage(this.fileName, ti.file_length, ti.piece_length);
+			verifier = new PieceVerifier(storage, pieces);
+			if (UploadCache.SIZE > 0)
+				uploadCache = new UploadCache(storage, UploadCache.SIZE);
+			hasher = new PieceHasher(storage, wake);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		verify();
 	}
 
 	/**
 	 * Verifies the file and updates what pieces we have.
+	 *
+	 * @return false if verification was cancelled by stop()
 	 */
-	private void verify() {
-		int offset = 0;
-		MessageDigest md;
-		byte[] sha1;
-		try {
-			for (Piece pc : pieces) {
-				md = MessageDigest.getInstance("SHA-1");
-				ByteBuffer bb = ByteBuffer.allocate(pc.getSize());
-				bb.put((ByteBuffer) fileByteBuffer.duplicate().position(offset).limit(offset + pc.getSize())).flip();
-				offset += pc.getSize();
-				sha1 = md.digest(bb.array());
-				if (Arrays.equals(sha1, pc.getHash())) {
-					left -= pc.getSize();
-					pc.setData(bb);
-					pc.setState(Piece.PieceState.COMPLETE);
-					piecesHad.set(pc.getIndex());
-				}
+	private boolean verify() {
+		if (storage == null)
+			return true;
+		BitSet good = resumeFile.load(torrentInfo.info_hash.array(), pieces);
+		if (good != null) {
+			System.out.println("Resuming from saved state, skipping verification.");
+		} else {
+			try {
+				good = verifier.verify();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
 			}
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
+			if (good == null)
+				return false;
 		}
-
+		for (int i = good.nextSetBit(0); i >= 0; i = good.nextSetBit(i+1)) {
+			Piece pc = pieces.get(i);
+			left -= pc.getSize();
+			pc.setState(Piece.PieceState.COMPLETE);
+			piecesHad.set(i);
+			picker.setWanted(i, false);
+		}
+		for (Piece pc : pieces) {
+			// A piece with every slice but no hash check would never be finished, so fetch it again.
+			if (pc.getState() != Piece.PieceState.COMPLETE && !pc.hasFreeSlice())
+				pc.clearSlices();
+		}
+		System.out.println("\rHave " + good.cardinality() + " of " + pieces.size() + " pieces.");
+		return true;
 	}
+
 	/**
 	 * Used by the RUBTClient to stop the torrent run loop
 	 */
 	public void stop() {
 		running = false;
+		if (verifier != null)
+			verifier.cancel();
+		wakeup.release();
 	}
 
+	/**
+	 * Runs a round of the Choker and sends Choke and Unchoke to the peers
+	 * whose state changed.
+	 */
 	private void updateChokedPeers() {
-		Peer choked = null;
+		HashSet<Peer> unchoke = choker.choose(peers.values(), left == 0, System.currentTimeMillis());
 		for (Peer p : peers.values()) {
-			if (!p.choking) {
-				p.getPeerConnection().sendChoke();
-				p.choking = true;
-				choked = p;
-				break;
-			}
-		}
-		// There are no unchoked peers...
-		if (choked == null) {
-			int i = 3;
-			for (Peer p : peers.values()) {
+			if (unchoke.contains(p) && p.choking) {
 				p.choking = false;
 				p.getPeerConnection().sendUnchoke();
-				if (--i == 0) break;
-			}
-		} else {
-			// We choked an unchoked peer, so now unchoke a random peer.
-			for (Peer p : peers.values()) {
-				if (p.choking && p != choked) {
-					p.choking = false;
-					p.getPeerConnection().sendUnchoke();
-					return;
-				}
+			} else if (!unchoke.contains(p) && !p.choking) {
+				p.choking = true;
+				p.getPeerConnection().sendChoke();
 			}
-			// Since we couldn't find anyone else to unchoke, just unchoke
-			// the choked peer again.
-			choked.choking = false;
-			choked.getPeerConnection().sendUnchoke();
 		}
-		if (left == 0) {
+		if (left == 0 && !seeding) {
+			seeding = true;
 			System.out.println("File is already complete.  Seeding.");
 		}
 	}
@@ -147,90 +191,263 @@ public class Torrent implements Runnable {
 	 * Then enters run loop and ends once we get all the pieces
 	 *
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public void run() {
+		// Nothing has been announced or connected yet, so if we were stopped
+		// while verifying, all there is to clean up is the file.
+		if (!verify()) {
+			closeStorage();
+			timeouts.shutdown();
+			return;
+		}
 		try {
-			chokeTimer = new Timer("Choke Timer", true);
-			chokeTimer.schedule(new TimerTask() {
+			if (!VirtualThreads.ENABLED) {
+				peerSelector = new PeerSelector();
+				selectorThread = new Thread(peerSelector, "Peer Selector");
+				selectorThread.start();
+			}
+			// The tracker may take its time, so the peers it gives us are connected once it answers.
+			final int up = uploaded, down = downloaded, lf = left;
+			trackerThread.execute(new Runnable() {
 				@Override
 				public void run() {
-					Torrent.this.updateChokedPeers();
+					try {
+						final HashMap<ByteBuffer, Object> trackerResponse = tracker.start(peerId, port, up, down, lf, torrentInfo.info_hash);
+						post(new Runnable() {
+							@Override
+							public void run() {
+								started(trackerResponse);
+							}
+						});
+					} catch (IOException e) {
+						e.printStackTrace();
+						stop();
+					} catch (BencodingException e) {
+						e.printStackTrace();
+						stop();
+					}
 				}
-			}, 0, 30000);
-			HashMap<ByteBuffer, Object> trackerResponse = tracker.start(peerId, port, uploaded, downloaded, left, encodedInfoHash);
-			ArrayList<HashMap<ByteBuffer,Object>> tmp_peers = (ArrayList<HashMap<ByteBuffer, Object>>) trackerResponse.get(TrackerConnection.PEERS);
-			int i = 99;
-			for (HashMap<ByteBuffer,Object> p : tmp_peers) {
-				if ((new String(((ByteBuffer)p.get(TrackerConnection.PEER_IP)).array())).equals("128.6.171.130") || (new String(((ByteBuffer)p.get(TrackerConnection.PEER_IP)).array())).equals("128.6.171.131")) {
-					PeerConnection pc = new PeerConnection(this, new String(((ByteBuffer)p.get(TrackerConnection.PEER_IP)).array()), (Integer) p.get(TrackerConnection.PEER_PORT), (ByteBuffer)p.get(TrackerConnection.PEER_ID));
-					pc.sendHandshake(this.torrentInfo.info_hash, ByteBuffer.wrap(this.peerId.getBytes()));
-					Peer pr = new Peer((ByteBuffer) p.get(TrackerConnection.PEER_ID), pc);
-					pr.handshook = false;
-					peers.put(pr.getPeerId(), pr);
-					(new Thread(pc)).start();
-					if (--i == 0) break;
+			});
+			updateChokedPeers();
+			every(Choker.INTERVAL, new Runnable() {
+				@Override
+				public void run() {
+					updateChokedPeers();
 				}
+			});
+			if (STATS_INTERVAL > 0) {
+				every(STATS_INTERVAL, new Runnable() {
+					@Override
+					public void run() {
+						printPeerStats();
+					}
+				});
 			}
-			minInterval = (Integer)trackerResponse.get(TrackerConnection.MIN_INTERVAL) * 1000;
-			interval = (Integer)trackerResponse.get(TrackerConnection.INTERVAL) * 1000;
-
-			// If there's no minimum interval...
-			if (minInterval == 0)
-				minInterval = interval / 2;
-
-			lastAnnounce = System.currentTimeMillis();
-
-			while (running) {
-				if ((System.currentTimeMillis() - lastAnnounce) >= (minInterval - 5000)) {
-					tracker.announce(peerId, port, uploaded, downloaded, left, encodedInfoHash);
-					lastAnnounce = System.currentTimeMillis();
+			every(RESUME_INTERVAL, new Runnable() {
+				@Override
+				public void run() {
+					saveResume();
 				}
+			});
 
-				// Process all messages that have come in since the last time we looped.
-				processMessages();
-
-				// At this point, all peers that are no longer busy (in a multi-part communication)
-				// are marked as not busy.  So, let's decide what we want each of them to do.
-				processFreePeers();
+			while (running) {
+				step();
 
+				// Sleep until a message, a hash result, a slice timeout or timed work comes in.
 				try {
-					Thread.sleep(500);
+					wakeup.acquire();
+					wakeup.drainPermits();
 				} catch (InterruptedException e) {
 					e.printStackTrace();
 				}
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (BencodingException e) {
-			e.printStackTrace();
 		} finally {
-			synchronized (fileLock) {
-				try {
-					if (dataFile != null) dataFile.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				fileByteBuffer = null;
+			// Give up on anything still waiting for the tracker.  Stopped gets one short try of its own.
+			trackerThread.shutdownNow();
+			// The connections go first: queued Piece messages are sent straight from the data
+			// file, so it must stay open until nothing can be sending any more.
+			for (Peer pr: peers.values()) { // shutdown all the peers
+				pr.getPeerConnection().shutdown();
+			}
+			if (peerSelector != null) {
+				peerSelector.shutdown();
+				join(selectorThread);
+			}
+			for (Thread t : peerThreads) {
+				join(t);
+			}
+			if (hasher != null)
+				hasher.shutdown();
+			if (uploadCache != null)
+				uploadCache.shutdown();
+			saveResume();
+			closeStorage();
+			if (uploadCache != null && uploadCache.getHits() + uploadCache.getMisses() > 0) {
+				System.out.println("Upload cache: " + Math.round(100 * uploadCache.getHitRatio()) + "% hits, "
+						+ uploadCache.getBytesSaved() / 1024 + " KB not read from disk.");
+			}
+			if (blockPool.getHits() + blockPool.getMisses() > 0) {
+				System.out.println("\rBlock pool: " + blockPool.getHits() + " hits, " + blockPool.getMisses() + " misses, "
+						+ blockPool.getInUse() + " of " + blockPool.getCapacity() + " buffers outstanding (peak " + blockPool.getPeakInUse()
+						+ "), requests held back for " + blockPool.getPressureMillis() + " ms.");
 			}
 			try {
 				// send stopped message
-				tracker.stop(peerId, port, uploaded, downloaded, left, encodedInfoHash);
+				tracker.stop(peerId, port, uploaded, downloaded, left, torrentInfo.info_hash);
 			} catch (IOException e) {
 				e.printStackTrace();
 			} catch (BencodingException e) {
 				e.printStackTrace();
 			}
-			for (Peer pr: peers.values()) { // shutdown all the peers
-				pr.getPeerConnection().shutdown();
+			System.out.println("Upload " + uploadBucket + ", download " + downloadBucket + ".");
+			timeouts.shutdown();
+		}
+	}
+
+	/**
+	 * One pass of the run loop, without the sleep.  Package-private so that
+	 * checks can drive a torrent whose peers are not on the network.
+	 */
+	void step() {
+		// Announces, choke rounds and other timed work that has come due.
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+
+		// Pieces the hasher has finished with since the last time we looped.
+		processHashResults();
+
+		// Process all messages that have come in since the last time we looped.
+		processMessages();
+
+		// At this point, all peers that are no longer busy (in a multi-part communication)
+		// are marked as not busy.  So, let's decide what we want each of them to do.
+		processFreePeers();
+	}
+
+	/**
+	 * Adds a peer as if the tracker had listed it, without connecting to it.
+	 * For checks that drive the torrent with step().
+	 *
+	 * @param pr The peer, whose connection is never started
+	 */
+	void addPeer(Peer pr) {
+		pr.getPeerConnection().sendHandshake(this.torrentInfo.info_hash, ByteBuffer.wrap(this.peerId.getBytes()));
+		peers.put(pr.getPeerId(), pr);
+	}
+
+	/**
+	 * Waits for a thread to finish.
+	 */
+	private static void join(Thread t) {
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Connects to the peers from the tracker's answer to our Started announce
+	 * and schedules the regular announces.  Runs on the run loop.
+	 *
+	 * @param trackerResponse Tracker response dictionary
+	 */
+	private void started(HashMap<ByteBuffer, Object> trackerResponse) {
+		PeerList tmp_peers = TrackerConnection.getPeers(trackerResponse);
+		int i = 99;
+		for (int j = 0; j < tmp_peers.size(); ++j) {
+			String ip = tmp_peers.getHost(j);
+			if (ip.equals("128.6.171.130") || ip.equals("128.6.171.131")) {
+				PeerId id = tmp_peers.getKey(j);
+				PeerConnection pc = new PeerConnection(this, peerSelector, ip, tmp_peers.getPort(j), id);
+				pc.sendHandshake(this.torrentInfo.info_hash, ByteBuffer.wrap(this.peerId.getBytes()));
+				Peer pr = new Peer(id, pc);
+				pr.handshook = false;
+				peers.put(pr.getPeerId(), pr);
+				if (peerSelector != null)
+					peerSelector.register(pc);
+				else
+					peerThreads.add(VirtualThreads.start(pc, ip + " peer"));
+				if (--i == 0) break;
 			}
 		}
+		Integer min = (Integer)trackerResponse.get(TrackerConnection.MIN_INTERVAL);
+		minInterval = min == null ? 0 : min * 1000;
+		Integer iv = (Integer)trackerResponse.get(TrackerConnection.INTERVAL);
+		interval = iv == null ? 1800 * 1000 : iv * 1000;
+
+		// If there's no minimum interval...
+		if (minInterval == 0)
+			minInterval = interval / 2;
+
+		every(Math.max(minInterval - 5000, 1000), new Runnable() {
+			@Override
+			public void run() {
+				announce();
+			}
+		});
+	}
+
+	/**
+	 * Sends a regular announce from the tracker thread.  Skipped while the
+	 * last one is still waiting for the tracker, so a dead tracker does not
+	 * pile them up.
+	 */
+	private void announce() {
+		if (!announcing.compareAndSet(false, true))
+			return;
+		final int up = uploaded, down = downloaded, lf = left;
+		trackerThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tracker.announce(peerId, port, up, down, lf, torrentInfo.info_hash);
+				} catch (IOException e) {
+					e.printStackTrace();
+				} catch (BencodingException e) {
+					e.printStackTrace();
+				} finally {
+					announcing.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Flushes the data file and records what is in it, so the next start
+	 * can skip verification.  Only called from the run loop, which is the
+	 * only thread that writes to storage.
+	 */
+	private void saveResume() {
+		if (storage == null)
+			return;
+		try {
+			storage.flush();
+			resumeFile.save(torrentInfo.info_hash.array(), pieces, piecesHad);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void closeStorage() {
+		try {
+			if (storage != null) storage.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		storage = null;
 	}
 
 	public void processMessages() {
 		PeerMessage msg;
 		while ((msg = messages.poll()) != null) {
-			handleMessage(peers.get(msg.getPeerId()), msg);
+			Peer pr = peers.get(msg.getPeerId());
+			if (pr != null)
+				handleMessage(pr, msg);
 		}
 	}
 
@@ -242,14 +459,17 @@ public class Torrent implements Runnable {
 					pr.getPeerConnection().shutdown();
 					return;
 				}
-				if (((ByteBuffer)message.slice().position(19+8).limit(20)).compareTo(torrentInfo.info_hash) != 0) { // Wrong infohash
+				if (((ByteBuffer)message.slice().position(19+8).limit(19+8+20)).compareTo((ByteBuffer)torrentInfo.info_hash.duplicate().clear()) != 0) { // Wrong infohash
 					pr.getPeerConnection().shutdown();
 					return;
 				}
-				if (((ByteBuffer)message.slice().position(19+8+20)).compareTo(pr.getPeerId()) != 0) { // Wrong peerId
+				if (!pr.getPeerId().isAddress() && !pr.getPeerId().matches(message, 1+19+8+20)) { // Wrong peerId
 					pr.getPeerConnection().shutdown();
 					return;
 				}
+				// This is a fresh connection, so whatever the peer had before is about to be resent.
+				picker.removeAvailable(pr.getAvailablePieces());
+				pr.setAvailablePieces(new BitSet());
 				ByteBuffer bf = getBitField();
 				if (bf != null) {
 					pr.getPeerConnection().sendBitfield(bf);
@@ -264,18 +484,29 @@ public class Torrent implements Runnable {
 				break;
 			case Choke: // Choke
 				pr.choked = true;
-				pr.outstandingRequests = 0;
+				pr.clearRequests();
 				break;
 			case Unchoke: // Unchoke
 				pr.choked = false;
 				break;
 			case Interested: // Interested
 				pr.interested = true;
+				if (pr.choking && unchokedPeers() < Choker.SLOTS)
+					updateChokedPeers(); // There is a free slot, no need to wait for the next round.
 				break;
 			case NotInterested: // Not Interested
 				pr.interested = false;
 				break;
 			case Have: // Have
+				// Checked before the picker sees the index, which it would use as an array index.
+				if (msg.getIndex() < 0 || msg.getIndex() >= pieces.size()) {
+					pr.getPeerConnection().reject(new ProtocolException(pr.getPeerConnection().getAddress()
+							+ " sent a Have for piece " + msg.getIndex() + " of " + pieces.size()));
+					break;
+				}
+				if (!pr.canGetPiece(msg.getIndex())) {
+					picker.addAvailable(msg.getIndex());
+				}
 				pr.setPieceAvailable(msg.getIndex());
 				if (!pr.weHaveInterest && !piecesHad.get(msg.getIndex())) {
 					pr.weHaveInterest = true;
@@ -283,7 +514,9 @@ public class Torrent implements Runnable {
 				}
 				break;
 			case Bitfield: // Bitfield
+				picker.removeAvailable(pr.getAvailablePieces());
 				pr.setAvailablePieces(msg.getBitfield());
+				picker.addAvailable(pr.getAvailablePieces());
 				BitSet tmp = ((BitSet)piecesHad.clone());
 				tmp.flip(0, piecesHad.size());
 				if (!tmp.intersects(pr.getAvailablePieces())) {
@@ -296,161 +529,299 @@ public class Torrent implements Runnable {
 				break;
 
 			case Request: // Request
-				if (!pr.choking) {
-					pr.getPeerConnection().sendPiece(msg.getIndex(), msg.getBegin(), msg.getLength(), pieces.get(msg.getIndex()).getByteBuffer());
+				if (!pr.choking && isValidRequest(msg)) {
+					sendBlock(pr, msg);
+					pr.getUploadRate().add(msg.getLength(), System.currentTimeMillis());
 					uploaded += msg.getLength();
 				}
 
 				break;
 			case Piece: // Piece
-				Piece pc = pieces.get(msg.getIndex());
-				pr.outstandingRequests--;
-
-				((ByteBuffer)pc.getByteBuffer().position(msg.getBegin())).put(msg.getBytes());
-				pc.putSlice(msg.getBegin() / Piece.SLICE_SIZE);
-
-				int slice = pc.getNextSlice();
-				if (slice == -1) {
-					if (!pc.isLoadingSlices()) {
-						putPiece(pc);
-					}
-				} else {
-					pr.getPeerConnection().sendRequest(pc.getIndex(), pc.getBeginOfSlice(slice), pc.getLengthOfSlice(slice));
+				try {
+					handlePiece(pr, msg);
+				} finally {
+					blockPool.release(msg.getBytes());
 				}
-
 				break;
 
 			case Cancel:
+				// Requests are answered as they come in, so all we can do is drop the block if it is still queued.
+				pr.getPeerConnection().cancelPiece(msg.getIndex(), msg.getBegin(), msg.getLength());
 				break;
 			default:
 				// Shouldn't happen...
 		}
 	}
 
+	/**
+	 * Writes a received block to storage and checks the piece once it has
+	 * all of its slices.
+	 */
+	private void handlePiece(Peer pr, PeerMessage msg) {
+		if (msg.getIndex() < 0 || msg.getIndex() >= pieces.size())
+			return;
+		Piece pc = pieces.get(msg.getIndex());
+		int begin = msg.getBegin();
+		int length = msg.getBytes().remaining();
+		// Nothing reaches the file unless it is exactly one of the piece's slices: anything
+		// else could overwrite a neighbouring piece that has already been checked.
+		if (begin < 0 || begin % Piece.SLICE_SIZE != 0 || begin >= pc.getSize() || length != pc.getLengthOfSlice(begin / Piece.SLICE_SIZE)) {
+			wastedBytes += length;
+			return;
+		}
+		// Outside endgame we only take what we asked this peer for.  In endgame a block
+		// can legitimately cross our Cancel, and any copy of a missing slice is welcome.
+		if (pr.requestDone(msg.getIndex(), begin, length, System.currentTimeMillis()) == null && !endgame) {
+			wastedBytes += length;
+			return;
+		}
+		if (pc.getState() == Piece.PieceState.COMPLETE || pc.hasSlice(msg.getBegin() / Piece.SLICE_SIZE)) {
+			// A late or duplicate copy of a block we already have.
+			duplicateBlocks++;
+			wastedBytes += msg.getBytes().remaining();
+			return;
+		}
+		if (endgame) {
+			for (Peer p : peers.values()) {
+				if (p != pr && p.cancelRequest(msg.getIndex(), msg.getBegin())) {
+					p.getPeerConnection().sendCancel(msg.getIndex(), msg.getBegin(), msg.getBytes().remaining());
+				}
+			}
+		}
+
+		ByteBuffer block = msg.getBytes();
+		int start = block.position();
+		try {
+			storage.writeBlock(msg.getIndex(), msg.getBegin(), block);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return; // The slice times out and is requested again.
+		}
+		// Hash the block now, while it is still in cache, so the piece can be checked the moment it is done.
+		block.position(start);
+		pc.hashSlice(msg.getBegin() / Piece.SLICE_SIZE, block);
+		pc.putSlice(msg.getBegin() / Piece.SLICE_SIZE);
+
+		// The follow-up requests are sent by processFreePeers once this batch of messages is handled.
+		if (!pc.hasFreeSlice() && !pc.isLoadingSlices()) {
+			putPiece(pc);
+		}
+	}
+
 	private void processFreePeers() {
+		// Slices that timed out have been freed by their Piece; the requests for them go too,
+		// or they would hold each peer's request depth forever.
+		long now = System.currentTimeMillis();
+		for (Peer p : peers.values()) {
+			for (Peer.Request r : p.expireRequests(now - Piece.SLICE_TIMEOUT)) {
+				p.getPeerConnection().sendCancel(r.index, r.begin, r.length);
+			}
+		}
+		// Blocks are arriving faster than they can be written out, so hold off on asking for more.
+		if (blockPool.isUnderPressure())
+			return;
 		for (Peer p : peers.values()) {
 			if (!p.handshook)
 				continue;
-			if (!p.choked && p.outstandingRequests < 5) {
-				Piece pc = choosePiece(p);
+			// Fill the peer's request queue up to its current depth in one go.
+			int depth = p.getRequestDepth();
+			while (!p.choked && p.getOutstandingRequests() < depth) {
+				Piece pc = picker.choose(p);
 				if (pc == null) { // There's no piece to download from this peer...
-					continue;
+					if ((endgame || (endgame = isEndgame())) && requestEndgameSlice(p))
+						continue;
+					break;
 				}
 				int slice = pc.getNextSlice();
-				if (slice != -1) {
-					p.outstandingRequests++;
-					p.getPeerConnection().sendRequest(pc.getIndex(), pc.getBeginOfSlice(slice), pc.getLengthOfSlice(slice));
+				if (slice == -1) {
+					break;
 				}
+				p.requestSent(pc.getIndex(), pc.getBeginOfSlice(slice), pc.getLengthOfSlice(slice), System.currentTimeMillis());
+				p.getPeerConnection().sendRequest(pc.getIndex(), pc.getBeginOfSlice(slice), pc.getLengthOfSlice(slice));
 			}
 		}
 	}
 
-	private Piece choosePiece(Peer pr) {
-		int[] pieceRanks = new int[pieces.size()];
+	/**
+	 * @param msg A Request message
+	 * @return Whether the request is for a block of a piece we have
+	 */
+	private boolean isValidRequest(PeerMessage msg) {
+		if (msg.getIndex() < 0 || msg.getIndex() >= pieces.size() || !piecesHad.get(msg.getIndex()))
+			return false;
+		return msg.getBegin() >= 0 && msg.getLength() > 0 && msg.getLength() <= 2 * Piece.SLICE_SIZE
+				&& msg.getBegin() + msg.getLength() <= pieces.get(msg.getIndex()).getSize();
+	}
 
-		for(Piece piece : pieces) {
-			if (piece.getState() == Piece.PieceState.INCOMPLETE && pr.canGetPiece(piece.getIndex())) {
-				pieceRanks[piece.getIndex()] = 0;
-			} else {
-				pieceRanks[piece.getIndex()] = -1;
-			}
+	/**
+	 * @return Whether every slice we are missing has been requested from someone
+	 */
+	private boolean isEndgame() {
+		if (piecesHad.nextClearBit(0) >= pieces.size())
+			return false;
+		for (int i = piecesHad.nextClearBit(0); i < pieces.size(); i = piecesHad.nextClearBit(i+1)) {
+			if (pieces.get(i).hasFreeSlice())
+				return false;
 		}
+		System.out.println("\rEntering endgame.");
+		return true;
+	}
 
-		for (Peer peer : peers.values()) {
-			for (Piece piece : pieces) {
-				if (peer.canGetPiece(piece.getIndex()) && pieceRanks[piece.getIndex()] != -1) {
-					pieceRanks[piece.getIndex()]++;
+	/**
+	 * Requests a missing slice from a peer even though another peer was
+	 * already asked for it.
+	 *
+	 * @param p The peer to request from
+	 * @return Whether a request was sent
+	 */
+	private boolean requestEndgameSlice(Peer p) {
+		for (int i = piecesHad.nextClearBit(0); i < pieces.size(); i = piecesHad.nextClearBit(i+1)) {
+			if (!p.canGetPiece(i))
+				continue;
+			Piece pc = pieces.get(i);
+			for (int slice = pc.getMissingSlice(0); slice != -1; slice = pc.getMissingSlice(slice+1)) {
+				if (!p.isRequested(i, pc.getBeginOfSlice(slice))) {
+					p.requestSent(i, pc.getBeginOfSlice(slice), pc.getLengthOfSlice(slice), System.currentTimeMillis());
+					p.getPeerConnection().sendRequest(i, pc.getBeginOfSlice(slice), pc.getLengthOfSlice(slice));
+					return true;
 				}
 			}
 		}
+		return false;
+	}
 
-		int leastPieceIndex = -1, leastPieceValue = -1;
+	/**
+	 * Answers a Request from the upload cache, or straight from the data file
+	 * if the cache is off or does not have the block yet.
+	 */
+	private void sendBlock(Peer pr, PeerMessage msg) {
+		ByteBuffer block = null;
+		if (uploadCache != null)
+			block = uploadCache.get(msg.getIndex(), msg.getBegin(), msg.getLength(), pieces.get(msg.getIndex()).getSize());
+		if (block != null)
+			pr.getPeerConnection().sendPiece(msg.getIndex(), msg.getBegin(), block);
+		else
+			pr.getPeerConnection().sendPiece(msg.getIndex(), msg.getBegin(), msg.getLength(), storage);
+	}
 
-		for (int i = 0; i < pieceRanks.length; i++) {
-			if (leastPieceIndex == -1 && pieceRanks[i] != -1) {
-				leastPieceIndex = i;
-				leastPieceValue = pieceRanks[i];
-			}
-			else if (leastPieceValue != -1 && leastPieceValue > pieceRanks[i] && pieceRanks[i] != -1) {
-				leastPieceIndex = i;
-				leastPieceValue = pieceRanks[i];
-			}
-		}
-		if (leastPieceIndex == -1)
-			return null;
+	/**
+	 * @return The cache requested blocks are uploaded from, or null if it is turned off
+	 */
+	public UploadCache getUploadCache() {
+		return uploadCache;
+	}
+
+	/**
+	 * @return Number of blocks received that we already had, mostly because of endgame
+	 */
+	public long getDuplicateBlocks() {
+		return duplicateBlocks;
+	}
 
-		return pieces.get(leastPieceIndex);
+	/**
+	 * @return Bytes received in blocks that we already had
+	 */
+	public long getWastedBytes() {
+		return wastedBytes;
 	}
 
 	/**
-	 * Callback of sorts when peers die unexpectedly
+	 * Callback of sorts when peers die unexpectedly.  Called on the
+	 * connection's I/O thread, so the peer is cleaned up on the run loop.
+	 * The connection resends our handshake itself when it reconnects.
 	 *
 	 * @param peerId Id of peer that died.
 	 */
-
-	public void peerDying(ByteBuffer peerId) {
-		System.out.println("Peer " + peerId + " died. Sadface.");
-		peers.get(peerId).handshook = false;
-		peers.get(peerId).choked = true;
-		peers.get(peerId).getPeerConnection().sendHandshake(this.torrentInfo.info_hash,ByteBuffer.wrap(this.peerId.getBytes()));
+	public void peerDying(final PeerId peerId) {
+		post(new Runnable() {
+			@Override
+			public void run() {
+				Peer pr = peers.get(peerId);
+				if (pr == null)
+					return;
+				System.out.println("Peer " + peerId + " died. Sadface.");
+				pr.handshook = false;
+				pr.choked = true;
+				pr.choking = true;
+				pr.clearRequests();
+				picker.removeAvailable(pr.getAvailablePieces());
+				pr.setAvailablePieces(new BitSet());
+			}
+		});
 	}
 
 
 	/**
-	 * Write the piece data to the piece buffer
+	 * Checks a piece whose slices have all been written to storage.  If they
+	 * all went through the piece's running hash it is checked right away,
+	 * otherwise it is handed to the hasher and the result comes back through
+	 * processHashResults.
 	 *
 	 * @param piece A piece object representation to be added
-	 * @return whether or not this piece validated.
 	 */
-	public boolean putPiece(Piece piece) {
-		MessageDigest md;
-		byte[] sha1 = null;
-		try {
-			md = MessageDigest.getInstance("SHA-1");
-			sha1 = md.digest(piece.getByteBuffer().array());
+	public void putPiece(Piece piece) {
+		if (piece.isHashed()) {
+			pieceChecked(piece, Arrays.equals(piece.getDigest().digest(), piece.getHash()));
+		} else {
+			hasher.submit(piece);
 		}
-		catch(NoSuchAlgorithmException e) {
-			e.printStackTrace();
+	}
+
+	/**
+	 * Applies the results of pieces the hasher has finished checking.
+	 */
+	private void processHashResults() {
+		PieceHasher.Result result;
+		while ((result = hasher.poll()) != null) {
+			pieceChecked(result.piece, result.valid);
 		}
+	}
 
-		synchronized (peerLock) {
-			synchronized (fileLock) {
-				if (Arrays.equals(sha1, piece.getHash())) {
-					fileByteBuffer.position(piece.getIndex() * torrentInfo.piece_length);
-					fileByteBuffer.put(piece.getByteBuffer());
-					piece.setState(Piece.PieceState.COMPLETE);
-					piecesHad.set(piece.getIndex());
-					for (Peer p : peers.values()) {
-						p.getPeerConnection().sendHave(piece.getIndex());
-						BitSet tmp = ((BitSet)piecesHad.clone());
-						tmp.flip(0, piecesHad.size());
-						if (!tmp.intersects(p.getAvailablePieces())) {
-							p.weHaveInterest = false;
-							p.getPeerConnection().sendNotInterested();
-						}
-					}
-					// Update stats
-					downloaded += piece.getSize();
-					left -= piece.getSize();
-					System.out.print("\r" + 100*downloaded / (downloaded+left) + "% complete            ");
-				} else {
-					piece.clearSlices();
-					piece.setState(Piece.PieceState.INCOMPLETE);
-					return false;
-				}
+	/**
+	 * Good pieces are announced to every peer, bad ones are downloaded again.
+	 *
+	 * @param piece A piece that has been checked against its hash
+	 * @param valid Whether the hash matched
+	 */
+	private void pieceChecked(Piece piece, boolean valid) {
+		piece.resetHash();
+		if (!valid) {
+			piece.clearSlices();
+			piece.setState(Piece.PieceState.INCOMPLETE);
+			return;
+		}
+		piece.setState(Piece.PieceState.COMPLETE);
+		piecesHad.set(piece.getIndex());
+		picker.setWanted(piece.getIndex(), false);
+		BitSet missing = ((BitSet)piecesHad.clone());
+		missing.flip(0, pieces.size());
+		for (Peer p : peers.values()) {
+			p.getPeerConnection().sendHave(piece.getIndex());
+			if (p.weHaveInterest && !missing.intersects(p.getAvailablePieces())) {
+				p.weHaveInterest = false;
+				p.getPeerConnection().sendNotInterested();
 			}
 		}
+		// Update stats
+		downloaded += piece.getSize();
+		left -= piece.getSize();
+		System.out.print("\r" + 100*downloaded / (downloaded+left) + "% complete            ");
 		if (piecesHad.nextClearBit(0) == pieces.size() && !sentComplete) {
 			sentComplete = true;
-			try {
-				tracker.complete(peerId, port, uploaded, downloaded, left, encodedInfoHash);
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (BencodingException e) {
-				e.printStackTrace();
-			}
+			final int up = uploaded, down = downloaded, lf = left;
+			trackerThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						tracker.complete(peerId, port, up, down, lf, torrentInfo.info_hash);
+					} catch (IOException e) {
+						e.printStackTrace();
+					} catch (BencodingException e) {
+						e.printStackTrace();
+					}
+				}
+			});
 		}
-		return true;
 	}
 
 	/**
@@ -463,7 +834,7 @@ public class Torrent implements Runnable {
 		ArrayList<Piece> al = new ArrayList<Piece>();
 		int total = torrentInfo.file_length;
 		for (int i = 0; i < torrentInfo.piece_hashes.length; ++i, total -= torrentInfo.piece_length) {
-			al.add(new Piece(i, Math.min(total, torrentInfo.piece_length), torrentInfo.piece_hashes[i]));
+			al.add(new Piece(i, Math.min(total, torrentInfo.piece_length), torrentInfo.piece_hashes[i], timeouts, wake));
 		}
 		this.piecesHad = new BitSet(al.size());
 		return al;
@@ -484,42 +855,136 @@ public class Torrent implements Runnable {
 	}
 
 	/**
-	 * URL encodes the infohash byte array
-	 *
-	 * @param infoHashByteArray Byte array from torrent file
-	 * @return The encoded infohash as a string
+	 * Calculates a bitfield for the torrent's current state.
+	 * @return A byte buffer containing the torrent's current bitfield.  This is suitable to be sent across the network
 	 */
-	private String encodeInfoHash(byte[] infoHashByteArray) {
-		StringBuilder sb = new StringBuilder();
-		for (byte b : infoHashByteArray) {
-			sb.append(String.format("%%%02X", b));
+	public ByteBuffer getBitField() {
+		byte[] bf = new byte[(pieces.size() + 8 - 1) / 8]; // Ceiling(pieces.size() / 8)
+		for (int i = 0; i < pieces.size(); ++i) {
+			bf[i/8] |= (pieces.get(i).getState() == Piece.PieceState.COMPLETE) ? 0x80 >> (i % 8) : 0;
+		}
+		boolean fail = false;
+		for (int i = 0; i < pieces.size()/8 && !fail; ++i) {
+			fail = (bf[i] != 0);
 		}
-		return sb.toString();
+		if (fail)
+			return ByteBuffer.wrap(bf);
+		return null;
 	}
 
+
 	/**
-	 * Calculates a bitfield for the torrent's current state.
-	 * @return A byte buffer containing the torrent's current bitfield.  This is suitable to be sent across the network
+	 * Runs a task on the run loop after a delay.  May be called from any thread.
+	 *
+	 * @param task The task
+	 * @param delay Milliseconds to wait
+	 * @return A handle to cancel it with
 	 */
-	public ByteBuffer getBitField() {
-		synchronized (fileLock) {
-			byte[] bf = new byte[(pieces.size() + 8 - 1) / 8]; // Ceiling(pieces.size() / 8)
-			for (int i = 0; i < pieces.size(); ++i) {
-				bf[i/8] |= (pieces.get(i).getState() == Piece.PieceState.COMPLETE) ? 0x80 >> (i % 8) : 0;
+	public TimeoutWheel.Timeout runLater(final Runnable task, long delay) {
+		return timeouts.schedule(new Runnable() {
+			@Override
+			public void run() {
+				post(task);
 			}
-			boolean fail = false;
-			for (int i = 0; i < pieces.size()/8 && !fail; ++i) {
-				fail = (bf[i] != 0);
+		}, delay);
+	}
+
+	/**
+	 * Runs a task on the run loop as soon as it gets to it.  May be called from any thread.
+	 *
+	 * @param task The task
+	 */
+	public void post(Runnable task) {
+		tasks.add(task);
+		wakeup.release();
+	}
+
+	/**
+	 * Runs a task on the run loop every period milliseconds until the torrent stops.
+	 */
+	private void every(final long period, final Runnable task) {
+		runLater(new Runnable() {
+			@Override
+			public void run() {
+				if (!running)
+					return;
+				task.run();
+				every(period, task);
 			}
-			if (fail)
-				return ByteBuffer.wrap(bf);
-			return null;
+		}, period);
+	}
+
+	/**
+	 * @return The timeout service shared by everything belonging to this torrent
+	 */
+	public TimeoutWheel getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * Prints a line about each connected peer.  Set rubt.statsInterval to
+	 * the number of seconds between dumps, or 0 to turn them off.
+	 */
+	private void printPeerStats() {
+		System.out.println("\rPeers:");
+		for (String stats : getPeerStats()) {
+			System.out.println("  " + stats);
+		}
+	}
+
+	/**
+	 * A snapshot of each connected peer's rates, round trip times and
+	 * requests.  Peer counters are lock-free, so this may be called from
+	 * any thread.
+	 *
+	 * @return One line per peer that has finished its handshake
+	 */
+	public List<String> getPeerStats() {
+		long now = System.currentTimeMillis();
+		ArrayList<String> stats = new ArrayList<String>();
+		for (Peer p : peers.values()) {
+			if (p.handshook)
+				stats.add(p.getStats(now));
 		}
+		return Collections.unmodifiableList(stats);
 	}
 
+	/**
+	 * @return Number of peers we are not choking
+	 */
+	private int unchokedPeers() {
+		int n = 0;
+		for (Peer p : peers.values()) {
+			if (!p.choking)
+				++n;
+		}
+		return n;
+	}
+
+	/**
+	 * @return This torrent's upload limit, charged by all of its connections
+	 */
+	public TokenBucket getUploadBucket() {
+		return uploadBucket;
+	}
+
+	/**
+	 * @return This torrent's download limit, charged by all of its connections
+	 */
+	public TokenBucket getDownloadBucket() {
+		return downloadBucket;
+	}
+
+	/**
+	 * @return The pool PeerConnections put received blocks in
+	 */
+	public BlockPool getBlockPool() {
+		return blockPool;
+	}
 
 	public void recvMessage(PeerMessage message) {
 		messages.add(message);
+		wakeup.release();
 	}
 
 }
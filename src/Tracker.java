@@ -0,0 +1,67 @@
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * A tracker, whatever protocol it speaks.  Every implementation answers with
+ * the dictionary an HTTP tracker would send, keyed by the constants in
+ * TrackerConnection, so the rest of the client never needs to know which
+ * kind it is talking to.  Announces give at least INTERVAL and the peers in
+ * PEERS or PEERS6; scrapes give FILES, mapping the info hash to a dictionary
+ * of COMPLETE, DOWNLOADED and INCOMPLETE.  A tracker that refuses a request
+ * throws an IOException with its reason.
+ *
+ * Requests block, possibly for a long time if the tracker is down, so they
+ * are made off the Torrent run loop.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public interface Tracker {
+
+	/**
+	 * Send Started announce to tracker
+	 * @param peerId Our peerId
+	 * @param port Port on which we are listening.
+	 * @param uploaded Amount we have uploaded
+	 * @param downloaded Amount we have downloaded
+	 * @param left Amount we have left to download
+	 * @param infoHash Info hash of the torrent we want.
+	 * @return Tracker response dictionary.
+	 * @throws IOException
+	 * @throws BencodingException
+	 */
+	HashMap<ByteBuffer,Object> start(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException, BencodingException;
+
+	/**
+	 * Send Stopped announce to tracker.  Since it is sent while shutting
+	 * down, it only gets one short try.
+	 * @see #start
+	 */
+	HashMap<ByteBuffer,Object> stop(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException, BencodingException;
+
+	/**
+	 * Send Completed announce to tracker
+	 * @see #start
+	 */
+	HashMap<ByteBuffer,Object> complete(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException, BencodingException;
+
+	/**
+	 * Send regular announce to tracker
+	 * @see #start
+	 */
+	HashMap<ByteBuffer,Object> announce(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException, BencodingException;
+
+	/**
+	 * Asks how many peers the tracker knows of for a torrent, without
+	 * announcing ourselves.
+	 * @param infoHash Info hash of the torrent
+	 * @return Tracker response dictionary.
+	 * @throws IOException
+	 * @throws BencodingException
+	 */
+	HashMap<ByteBuffer,Object> scrape(ByteBuffer infoHash) throws IOException, BencodingException;
+}
@@ -2,30 +2,39 @@ import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
 import edu.rutgers.cs.cs352.bt.util.Bencoder2;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Created by wlangford on 4/28/14.
  */
-public class TrackerConnection {
+public class TrackerConnection implements Tracker {
 
 
 	public static final ByteBuffer INCOMPLETE = ByteBuffer.wrap(new byte[] {'i','n','c','o','m','p','l','e','t','e'});
 	public static final ByteBuffer PEERS = ByteBuffer.wrap(new byte[] {'p','e','e','r','s'});
+	public static final ByteBuffer PEERS6 = ByteBuffer.wrap(new byte[] {'p','e','e','r','s','6'});
 	public static final ByteBuffer DOWNLOADED = ByteBuffer.wrap(new byte[] {'d','o','w','n','l','o','a','d','e','d'});
 	public static final ByteBuffer COMPLETE = ByteBuffer.wrap(new byte[] {'c','o','m','p','l','e','t','e'});
 	public static final ByteBuffer MIN_INTERVAL = ByteBuffer.wrap(new byte[] {'m','i','n',' ','i','n','t','e','r','v','a','l'});
 	public static final ByteBuffer INTERVAL = ByteBuffer.wrap(new byte[] {'i','n','t','e','r','v','a','l'});
+	public static final ByteBuffer FAILURE_REASON = ByteBuffer.wrap(new byte[] {'f','a','i','l','u','r','e',' ','r','e','a','s','o','n'});
+	public static final ByteBuffer FILES = ByteBuffer.wrap(new byte[] {'f','i','l','e','s'});
 
 	public static final ByteBuffer PEER_IP = ByteBuffer.wrap(new byte[] {'i','p'});
 	public static final ByteBuffer PEER_ID = ByteBuffer.wrap(new byte[] {'p','e','e','r',' ','i','d'});
 	public static final ByteBuffer PEER_PORT = ByteBuffer.wrap(new byte[] {'p','o','r','t'});
 
+	// Tracker requests run off the run loop, but should still give up eventually.
+	// Stopped is sent on the way out, so it gets less time.
+	public static final int TIMEOUT = Integer.getInteger("rubt.trackerTimeout", 30) * 1000;
+	public static final int STOP_TIMEOUT = Math.min(TIMEOUT, 5000);
+
 	private URL trackerURL;
 
 	public TrackerConnection(URL trackerURL) {
@@ -44,8 +53,9 @@ public class TrackerConnection {
 	 * @throws IOException
 	 * @throws BencodingException
 	 */
-	public HashMap<ByteBuffer,Object> start(String peerId, int port, int uploaded, int downloaded, int left, String infoHash) throws IOException, BencodingException {
-		return announce("started", peerId, port, uploaded, downloaded, left, infoHash);
+	@Override
+	public HashMap<ByteBuffer,Object> start(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException, BencodingException {
+		return announce("started", peerId, port, uploaded, downloaded, left, infoHash, TIMEOUT);
 	}
 
 	/**
@@ -60,8 +70,9 @@ public class TrackerConnection {
 	 * @throws IOException
 	 * @throws BencodingException
 	 */
-	public HashMap<ByteBuffer,Object> stop(String peerId, int port, int uploaded, int downloaded, int left, String infoHash) throws IOException, BencodingException {
-		return announce("stopped", peerId, port, uploaded, downloaded, left, infoHash);
+	@Override
+	public HashMap<ByteBuffer,Object> stop(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException, BencodingException {
+		return announce("stopped", peerId, port, uploaded, downloaded, left, infoHash, STOP_TIMEOUT);
 	}
 
 	/**
@@ -76,8 +87,9 @@ public class TrackerConnection {
 	 * @throws IOException
 	 * @throws BencodingException
 	 */
-	public HashMap<ByteBuffer,Object> complete(String peerId, int port, int uploaded, int downloaded, int left, String infoHash) throws IOException, BencodingException {
-		return announce("completed", peerId, port, uploaded, downloaded, left, infoHash);
+	@Override
+	public HashMap<ByteBuffer,Object> complete(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException, BencodingException {
+		return announce("completed", peerId, port, uploaded, downloaded, left, infoHash, TIMEOUT);
 	}
 
 	/**
@@ -92,33 +104,114 @@ public class TrackerConnection {
 	 * @throws IOException
 	 * @throws BencodingException
 	 */
-	public HashMap<ByteBuffer,Object> announce(String peerId, int port, int uploaded, int downloaded, int left, String infoHash) throws IOException, BencodingException {
-		return announce(null, peerId, port, uploaded, downloaded, left, infoHash);
+	@Override
+	public HashMap<ByteBuffer,Object> announce(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException, BencodingException {
+		return announce(null, peerId, port, uploaded, downloaded, left, infoHash, TIMEOUT);
 	}
 
-	@SuppressWarnings("unchecked")
-	private HashMap<ByteBuffer,Object> announce(String event, String peerId, int port, int uploaded, int downloaded, int left, String infoHash) throws IOException, BencodingException {
-		URL url = new URL(this.trackerURL.toString() +
-				"?info_hash=" + infoHash +
+	private HashMap<ByteBuffer,Object> announce(String event, String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash, int timeout) throws IOException, BencodingException {
+		return get(new URL(this.trackerURL.toString() +
+				(trackerURL.getQuery() == null ? "?" : "&") + "info_hash=" + encodeInfoHash(infoHash.array()) +
 				"&peer_id=" + peerId +
 				"&port=" + port +
 				"&uploaded=" + uploaded +
 				"&downloaded=" + downloaded +
 				"&left=" + left +
+				"&compact=1" +
 				"&event=" + (event != null ? event : "")
-		);
+		), timeout);
+	}
+
+	/**
+	 * Scrapes the tracker.  The scrape URL is the announce URL with
+	 * "announce" in its last path segment replaced by "scrape"; trackers
+	 * whose announce URL has no "announce" there do not support scraping.
+	 */
+	@Override
+	public HashMap<ByteBuffer,Object> scrape(ByteBuffer infoHash) throws IOException, BencodingException {
+		String url = this.trackerURL.toString();
+		int slash = url.lastIndexOf('/');
+		if (slash < 0 || !url.startsWith("announce", slash + 1))
+			throw new IOException("Tracker does not support scrape: " + url);
+		return get(new URL(url.substring(0, slash + 1) + "scrape" + url.substring(slash + 1 + "announce".length()) +
+				(trackerURL.getQuery() == null ? "?" : "&") + "info_hash=" + encodeInfoHash(infoHash.array())), TIMEOUT);
+	}
+
+	@SuppressWarnings("unchecked")
+	private HashMap<ByteBuffer,Object> get(URL url, int timeout) throws IOException, BencodingException {
 		HttpURLConnection con = (HttpURLConnection) url.openConnection();
-		DataInputStream dis = new DataInputStream(con.getInputStream());
+		con.setConnectTimeout(timeout);
+		con.setReadTimeout(timeout);
+		InputStream in = con.getInputStream();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(); // Like a baos
 
+		byte[] buf = new byte[4096];
 		int reads;
-		while ((reads = dis.read()) != -1) {
-			baos.write(reads);
+		while ((reads = in.read(buf)) != -1) {
+			baos.write(buf, 0, reads);
 		}
-		dis.close();
+		in.close();
 		HashMap<ByteBuffer, Object> res = (HashMap<ByteBuffer, Object>) Bencoder2.decode(baos.toByteArray());
 		baos.close();
+		ByteBuffer failure = (ByteBuffer) res.get(FAILURE_REASON);
+		if (failure != null)
+			throw new IOException("Tracker error: " + new String(failure.array()));
 		return res;
 	}
 
+	/**
+	 * URL encodes the infohash byte array
+	 *
+	 * @param infoHashByteArray Byte array from torrent file
+	 * @return The encoded infohash as a string
+	 */
+	private static String encodeInfoHash(byte[] infoHashByteArray) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : infoHashByteArray) {
+			sb.append(String.format("%%%02X", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads the peers out of a tracker response.  We ask for the compact
+	 * form, but trackers may ignore that and send the list of dictionaries,
+	 * so both are understood, along with the IPv6 "peers6" list.
+	 *
+	 * @param response Tracker response dictionary
+	 * @return The peers, empty if there are none
+	 */
+	@SuppressWarnings("unchecked")
+	public static PeerList getPeers(HashMap<ByteBuffer,Object> response) {
+		Object peers = response.get(PEERS);
+		Object peers6 = response.get(PEERS6);
+		int capacity = 0;
+		if (peers instanceof ByteBuffer)
+			capacity += ((ByteBuffer) peers).remaining() / 6;
+		else if (peers instanceof List)
+			capacity += ((List<?>) peers).size();
+		if (peers6 instanceof ByteBuffer)
+			capacity += ((ByteBuffer) peers6).remaining() / 18;
+		PeerList list = new PeerList(capacity);
+
+		if (peers instanceof ByteBuffer) {
+			list.addCompact((ByteBuffer) peers, false);
+		} else if (peers instanceof List) {
+			for (Object o : (List<?>) peers) {
+				if (!(o instanceof HashMap))
+					continue;
+				HashMap<ByteBuffer,Object> p = (HashMap<ByteBuffer,Object>) o;
+				ByteBuffer ip = (ByteBuffer) p.get(PEER_IP);
+				Integer port = (Integer) p.get(PEER_PORT);
+				if (ip == null || port == null)
+					continue;
+				ByteBuffer id = (ByteBuffer) p.get(PEER_ID);
+				list.add(new String(ip.array()), port, id == null ? null : new PeerId(id));
+			}
+		}
+		if (peers6 instanceof ByteBuffer)
+			list.addCompact((ByteBuffer) peers6, true);
+		return list;
+	}
+
 }
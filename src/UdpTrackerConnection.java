@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Talks to a udp:// tracker (BEP 15).  Before announcing or scraping we
+ * trade a connect for a connection id, which stays good for a minute and is
+ * reused until then, so most announces are a single round trip.
+ *
+ * UDP may drop packets, so a request with no answer after TIMEOUT is sent
+ * again, waiting twice as long each time, up to RETRIES times.  Answers are
+ * matched to requests by transaction id; anything else that arrives is
+ * ignored.  That can add up to hours against a dead tracker, so callers run
+ * it on a thread of its own and interrupt it to give up; stop() only makes
+ * one short try.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class UdpTrackerConnection implements Tracker {
+
+	public static final long TIMEOUT = Integer.getInteger("rubt.udpTimeout", 15) * 1000L;
+	public static final int RETRIES = Integer.getInteger("rubt.udpRetries", 8);
+	// Stopped is sent on the way out, so it gets one short try.
+	public static final long STOP_TIMEOUT = Math.min(TIMEOUT, 5000);
+
+	private static final long PROTOCOL_ID = 0x41727101980L;
+	private static final long CONNECTION_LIFETIME = 60000;
+	private static final int CONNECT = 0, ANNOUNCE = 1, SCRAPE = 2, ERROR = 3;
+	private static final int NONE = 0, COMPLETED = 1, STARTED = 2, STOPPED = 3;
+
+	private URL trackerURL;
+	private DatagramChannel channel;
+	private Selector selector;
+	private Random random = new Random();
+	private int key = random.nextInt();
+	private ByteBuffer receiveBuffer = ByteBuffer.allocate(65536);
+
+	private long connectionId;
+	private long connectedAt = 0;
+
+	public UdpTrackerConnection(URL trackerURL) {
+		this.trackerURL = trackerURL;
+	}
+
+	@Override
+	public HashMap<ByteBuffer,Object> start(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException {
+		return announce(STARTED, peerId, port, uploaded, downloaded, left, infoHash, RETRIES, TIMEOUT);
+	}
+
+	@Override
+	public HashMap<ByteBuffer,Object> stop(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException {
+		try {
+			return announce(STOPPED, peerId, port, uploaded, downloaded, left, infoHash, 0, STOP_TIMEOUT);
+		} finally {
+			close();
+		}
+	}
+
+	@Override
+	public HashMap<ByteBuffer,Object> complete(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException {
+		return announce(COMPLETED, peerId, port, uploaded, downloaded, left, infoHash, RETRIES, TIMEOUT);
+	}
+
+	@Override
+	public HashMap<ByteBuffer,Object> announce(String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash) throws IOException {
+		return announce(NONE, peerId, port, uploaded, downloaded, left, infoHash, RETRIES, TIMEOUT);
+	}
+
+	private HashMap<ByteBuffer,Object> announce(int event, String peerId, int port, int uploaded, int downloaded, int left, ByteBuffer infoHash, int retries, long timeout) throws IOException {
+		ByteBuffer body = ByteBuffer.allocate(82);
+		body.put(infoHash.array(), 0, 20);
+		body.put(peerId.getBytes(), 0, 20);
+		body.putLong(downloaded);
+		body.putLong(left);
+		body.putLong(uploaded);
+		body.putInt(event);
+		body.putInt(0); // Our address: the one the packet comes from.
+		body.putInt(key);
+		body.putInt(-1); // As many peers as the tracker likes.
+		body.putShort((short) port);
+		body.flip();
+
+		ByteBuffer response = request(ANNOUNCE, body, retries, timeout);
+		if (response.remaining() < 12)
+			throw new IOException("Short announce response from " + trackerURL);
+		HashMap<ByteBuffer,Object> res = new HashMap<ByteBuffer,Object>();
+		res.put(TrackerConnection.INTERVAL, response.getInt());
+		res.put(TrackerConnection.INCOMPLETE, response.getInt());
+		res.put(TrackerConnection.COMPLETE, response.getInt());
+		// The peers come in the family of the address we asked over.
+		ByteBuffer peers = ByteBuffer.allocate(response.remaining());
+		peers.put(response);
+		peers.flip();
+		boolean ipv6 = ((InetSocketAddress) channel.getRemoteAddress()).getAddress() instanceof Inet6Address;
+		res.put(ipv6 ? TrackerConnection.PEERS6 : TrackerConnection.PEERS, peers);
+		return res;
+	}
+
+	@Override
+	public HashMap<ByteBuffer,Object> scrape(ByteBuffer infoHash) throws IOException {
+		ByteBuffer body = ByteBuffer.allocate(20);
+		body.put(infoHash.array(), 0, 20);
+		body.flip();
+
+		ByteBuffer response = request(SCRAPE, body, RETRIES, TIMEOUT);
+		if (response.remaining() < 12)
+			throw new IOException("Short scrape response from " + trackerURL);
+		HashMap<ByteBuffer,Object> stats = new HashMap<ByteBuffer,Object>();
+		stats.put(TrackerConnection.COMPLETE, response.getInt());
+		stats.put(TrackerConnection.DOWNLOADED, response.getInt());
+		stats.put(TrackerConnection.INCOMPLETE, response.getInt());
+		HashMap<ByteBuffer,Object> files = new HashMap<ByteBuffer,Object>();
+		files.put(ByteBuffer.wrap(infoHash.array(), 0, 20).slice(), stats);
+		HashMap<ByteBuffer,Object> res = new HashMap<ByteBuffer,Object>();
+		res.put(TrackerConnection.FILES, files);
+		return res;
+	}
+
+	/**
+	 * @param retries How many times to send the connect again if there is no answer
+	 * @param timeout Milliseconds to wait for the first answer
+	 * @return A connection id, the cached one if it is still good
+	 * @throws IOException If the tracker does not answer
+	 */
+	private long connect(int retries, long timeout) throws IOException {
+		if (connectedAt != 0 && System.currentTimeMillis() - connectedAt < CONNECTION_LIFETIME)
+			return connectionId;
+		ByteBuffer response = request(CONNECT, ByteBuffer.allocate(0), retries, timeout);
+		if (response.remaining() < 8)
+			throw new IOException("Short connect response from " + trackerURL);
+		connectionId = response.getLong();
+		connectedAt = System.currentTimeMillis();
+		return connectionId;
+	}
+
+	/**
+	 * Sends a request until it is answered.  Each try uses the current
+	 * connection id, so one that runs out while we retry is replaced.
+	 *
+	 * @param action What to ask for
+	 * @param body The request after the 16 byte header
+	 * @param retries How many times to send it again if there is no answer
+	 * @param timeout Milliseconds to wait for the first answer, doubled for every retry
+	 * @return The answer after its 8 byte header
+	 * @throws IOException If the tracker refuses, gives no answer after every retry, or the thread is interrupted
+	 */
+	private synchronized ByteBuffer request(int action, ByteBuffer body, int retries, long timeout) throws IOException {
+		if (channel == null || !channel.isOpen())
+			open();
+		int transaction = random.nextInt();
+		for (int n = 0; n <= retries; ++n) {
+			long wait = timeout << Math.min(n, 8);
+			long id = PROTOCOL_ID;
+			if (action != CONNECT) {
+				// A connect that goes unanswered uses up this try rather than retrying on its own.
+				try {
+					id = connect(0, wait);
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+			}
+			ByteBuffer packet = ByteBuffer.allocate(16 + body.remaining());
+			packet.putLong(id);
+			packet.putInt(action);
+			packet.putInt(transaction);
+			packet.put(body.duplicate());
+			packet.flip();
+			channel.write(packet);
+
+			ByteBuffer response = receive(action, transaction, wait);
+			if (response != null)
+				return response;
+		}
+		throw new SocketTimeoutException("No answer from " + trackerURL);
+	}
+
+	private void open() throws IOException {
+		close();
+		if (trackerURL.getPort() == -1)
+			throw new IOException("No port in " + trackerURL);
+		InetSocketAddress address = new InetSocketAddress(trackerURL.getHost(), trackerURL.getPort());
+		if (address.isUnresolved())
+			throw new UnknownHostException(trackerURL.getHost());
+		channel = DatagramChannel.open();
+		channel.connect(address);
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Waits on a selector rather than in a blocking receive, so interrupting
+	 * the thread ends the wait at once.
+	 *
+	 * @return The answer to the transaction after its header, or null if none came in time
+	 * @throws InterruptedIOException If the thread was interrupted
+	 */
+	private ByteBuffer receive(int action, int transaction, long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long wait;
+		while ((wait = deadline - System.currentTimeMillis()) > 0) {
+			selector.select(wait);
+			selector.selectedKeys().clear();
+			if (Thread.currentThread().isInterrupted())
+				throw new InterruptedIOException("Interrupted while waiting for " + trackerURL);
+			receiveBuffer.clear();
+			try {
+				if (channel.read(receiveBuffer) <= 0)
+					continue;
+			} catch (PortUnreachableException e) {
+				continue; // Nobody listening (yet): same as no answer.
+			}
+			receiveBuffer.flip();
+			if (receiveBuffer.remaining() < 8)
+				continue;
+			int got = receiveBuffer.getInt();
+			if (receiveBuffer.getInt() != transaction)
+				continue; // An answer to some earlier request.
+			if (got == ERROR) {
+				if (action != CONNECT)
+					connectedAt = 0; // Perhaps the tracker forgot our connection id.
+				throw new IOException("Tracker error: " + new String(receiveBuffer.array(), 8, receiveBuffer.limit() - 8));
+			}
+			if (got == action)
+				return ByteBuffer.wrap(Arrays.copyOfRange(receiveBuffer.array(), 8, receiveBuffer.limit()));
+		}
+		return null;
+	}
+
+	private synchronized void close() {
+		try {
+			if (selector != null)
+				selector.close();
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		selector = null;
+		channel = null;
+		connectedAt = 0;
+	}
+}
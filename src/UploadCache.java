@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps recently uploaded blocks in memory so that peers asking for the same
+ * pieces are served without going back to the disk.  On a miss, the requested
+ * block and the next few blocks of the same piece are read in one go on the
+ * cache's own thread, since peers usually request a piece front to back; the
+ * block that missed is sent straight from the file meanwhile.  Blocks are
+ * evicted least recently used first once the cache holds more than its size
+ * in bytes.
+ *
+ * Only used from the Torrent run loop, apart from the read-ahead thread and
+ * the counters, which may be read from anywhere.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class UploadCache {
+
+	public static final long SIZE = Long.getLong("rubt.uploadCacheSize", 16) * 1024 * 1024;
+	public static final int READ_AHEAD = Integer.getInteger("rubt.readAhead", 8);
+
+	/**
+	 * One read-ahead: several blocks read with a single read into one buffer.
+	 * The buffer stays in memory until the last of its blocks is evicted, so
+	 * it is counted against the cache once, for as long as any block is left.
+	 */
+	private static class Run {
+		final int index;
+		final int begin;
+		final int end;
+		ByteBuffer data;
+		int cached = 0;
+
+		Run(int index, int begin, int end) {
+			this.index = index;
+			this.begin = begin;
+			this.end = end;
+		}
+	}
+
+	private static class Block {
+		final ByteBuffer data;
+		final Run run;
+
+		Block(ByteBuffer data, Run run) {
+			this.data = data;
+			this.run = run;
+		}
+	}
+
+	private PieceStorage storage;
+	private long capacity;
+	private long size = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	// Keyed by (piece index << 32 | begin), in access order.
+	private LinkedHashMap<Long, Block> blocks = new LinkedHashMap<Long, Block>(64, 0.75f, true);
+	// Blocks being read ahead, so that requests for them do not start reads of their own.
+	private HashSet<Long> reading = new HashSet<Long>();
+	// Finished read-aheads, added to the cache by the next get().
+	private ConcurrentLinkedQueue<Run> finished = new ConcurrentLinkedQueue<Run>();
+	private ExecutorService reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Read-ahead");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	// Set by shutdown().  The reader is never interrupted, since interrupting a
+	// FileChannel read closes the channel, and the storage's channel is shared.
+	private volatile boolean cancelled = false;
+
+	/**
+	 * @param storage Where blocks are read from on a miss
+	 * @param capacity Maximum number of bytes to keep
+	 */
+	public UploadCache(PieceStorage storage, long capacity) {
+		this.storage = storage;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Looks up a block.  On a miss, it and the blocks after it are read in
+	 * the background for the requests that are likely to follow.
+	 *
+	 * @param index Index of the piece
+	 * @param begin Offset of the block within the piece
+	 * @param length Length of the block
+	 * @param pieceSize Size of the piece, so read-ahead stops at its end
+	 * @return A buffer holding exactly the block that the caller may consume, or
+	 *         null if the block is not cached and should be sent from the file
+	 */
+	public ByteBuffer get(int index, int begin, int length, int pieceSize) {
+		addFinished();
+		if (begin % Piece.SLICE_SIZE != 0 || length > Piece.SLICE_SIZE)
+			return null;
+		Block block = blocks.get(key(index, begin));
+		if (block == null) {
+			misses.incrementAndGet();
+			if (!reading.contains(key(index, begin)))
+				readAhead(index, begin, pieceSize);
+			return null;
+		}
+		if (length > block.data.capacity())
+			return null;
+		hits.incrementAndGet();
+		bytesSaved.addAndGet(length);
+		ByteBuffer bb = block.data.duplicate();
+		bb.position(0).limit(length);
+		return bb;
+	}
+
+	/**
+	 * Starts reading the block at begin and up to READ_AHEAD - 1 blocks after
+	 * it that are neither cached nor being read already.
+	 */
+	private void readAhead(int index, int begin, int pieceSize) {
+		int end = begin + Piece.SLICE_SIZE;
+		for (int n = 1; n < READ_AHEAD && end < pieceSize && !blocks.containsKey(key(index, end))
+				&& !reading.contains(key(index, end)); ++n) {
+			end += Piece.SLICE_SIZE;
+		}
+		final Run run = new Run(index, begin, Math.min(end, pieceSize));
+		for (int off = run.begin; off < run.end; off += Piece.SLICE_SIZE)
+			reading.add(key(index, off));
+		reader.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (cancelled)
+					return;
+				try {
+					run.data = storage.readBlock(run.index, run.begin, run.end - run.begin);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				finished.add(run); // Even if the read failed, so its blocks can be tried again.
+			}
+		});
+	}
+
+	/**
+	 * Caches the blocks of every finished read-ahead, then evicts the least
+	 * recently used blocks until the cache fits.
+	 */
+	private void addFinished() {
+		Run run;
+		while ((run = finished.poll()) != null) {
+			for (int off = run.begin; off < run.end; off += Piece.SLICE_SIZE) {
+				long key = key(run.index, off);
+				reading.remove(key);
+				if (run.data == null || blocks.containsKey(key))
+					continue;
+				run.data.limit(Math.min(off + Piece.SLICE_SIZE, run.end) - run.begin).position(off - run.begin);
+				blocks.put(key, new Block(run.data.slice(), run));
+				run.cached++;
+			}
+			if (run.cached > 0)
+				size += run.data.capacity();
+		}
+		for (Iterator<Block> it = blocks.values().iterator(); size > capacity && it.hasNext(); ) {
+			Block eldest = it.next();
+			it.remove();
+			if (--eldest.run.cached == 0)
+				size -= eldest.run.data.capacity();
+		}
+	}
+
+	/**
+	 * Stops the read-ahead thread, abandoning reads that have not been
+	 * started, and waits for the one in progress so that nothing reads from
+	 * the storage once this returns.
+	 */
+	public void shutdown() {
+		cancelled = true;
+		reader.shutdown();
+		try {
+			reader.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static long key(int index, int begin) {
+		return ((long) index << 32) | (begin & 0xffffffffL);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return Fraction of lookups served from memory
+	 */
+	public double getHitRatio() {
+		long h = hits.get(), total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * @return Bytes uploaded from memory that would otherwise have been read from disk
+	 */
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	/**
+	 * @return Bytes of memory the cached blocks hold on to
+	 */
+	public long getSize() {
+		return size;
+	}
+}
@@ -0,0 +1,106 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Checks that PieceVerifier finds the same good pieces as hashing them one
+ * after another on a single thread.  Writes a synthetic file whose last
+ * piece is short, keeps the right hashes for most pieces and damages the
+ * rest, some by a wrong hash and some by a flipped byte in the file.  Also
+ * times both ways and checks that a cancelled verify returns null.  Exits
+ * with status 1 if anything is wrong.
+ *
+ * Usage: java [-Drubt.verifyThreads=N] VerifyCheck [megabytes]
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class VerifyCheck {
+
+	private static final int PIECE_SIZE = 256 * 1024;
+
+	public static void main(String[] args) throws IOException, InterruptedException, NoSuchAlgorithmException {
+		long length = (args.length > 0 ? Long.parseLong(args[0]) : 64) * 1024 * 1024 + 12345;
+		int count = (int) ((length + PIECE_SIZE - 1) / PIECE_SIZE);
+		File file = File.createTempFile("verify", ".bin");
+		file.deleteOnExit();
+		Random random = new Random(352);
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		ArrayList<Piece> pieces = new ArrayList<Piece>();
+		BitSet expected = new BitSet(count);
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		byte[] data = new byte[PIECE_SIZE];
+		for (int i = 0; i < count; ++i) {
+			int size = (int) Math.min(PIECE_SIZE, length - (long) i * PIECE_SIZE);
+			random.nextBytes(data);
+			md.reset();
+			md.update(data, 0, size);
+			byte[] hash = md.digest();
+			if (i % 7 == 3) {
+				hash[0] ^= 1;
+			} else if (i % 11 == 5) {
+				data[random.nextInt(size)] ^= 1;
+			} else {
+				expected.set(i);
+			}
+			out.write(data, 0, size);
+			pieces.add(new Piece(i, size, ByteBuffer.wrap(hash), null, null));
+		}
+		out.close();
+		PieceStorage storage = new PieceStorage(file.getPath(), length, PIECE_SIZE);
+
+		// One thread, one piece after another.
+		long t = System.nanoTime();
+		BitSet serial = new BitSet(count);
+		for (Piece piece : pieces) {
+			if (Arrays.equals(storage.digest(piece.getIndex(), piece.getSize(), md), piece.getHash()))
+				serial.set(piece.getIndex());
+		}
+		long serialTime = System.nanoTime() - t;
+
+		t = System.nanoTime();
+		BitSet parallel = new PieceVerifier(storage, pieces).verify();
+		long parallelTime = System.nanoTime() - t;
+		System.out.println();
+
+		check(serial.equals(expected), "hashing one piece after another finds the good pieces");
+		check(parallel != null && parallel.equals(serial), "the verifier finds the same pieces as hashing one after another");
+
+		final PieceVerifier cancelled = new PieceVerifier(storage, pieces);
+		Thread canceller = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (cancelled.getVerified() == 0)
+					Thread.yield();
+				cancelled.cancel();
+			}
+		});
+		canceller.start();
+		check(cancelled.verify() == null, "a cancelled verify returns null");
+		canceller.join();
+		check(cancelled.getVerified() < count, "a cancelled verify stops early");
+		storage.close();
+
+		System.out.println(count + " pieces, " + length / (1024 * 1024) + " MB, " + expected.cardinality() + " good");
+		System.out.println("one thread:  " + serialTime / 1000000 + " ms");
+		System.out.println(PieceVerifier.THREADS + " threads:   " + parallelTime / 1000000 + " ms, "
+				+ String.format("%.1f", (double) serialTime / parallelTime) + "x");
+		System.out.println("ok");
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.out.println("FAILED: " + what);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+import java.lang.reflect.Method;
+
+/**
+ * Starts the threads that PeerConnections and Torrents run on.  When the
+ * client is run with -Drubt.virtualThreads=true each connection does plain
+ * blocking I/O on its own thread instead of sharing a PeerSelector, and those
+ * threads are virtual threads if the JVM has them (Java 21+).  Older JVMs fall
+ * back to platform threads.
+ *
+ * @author eddiezane
+ * @author wlangford
+ * @author kaushal
+ */
+public class VirtualThreads {
+
+	public static final boolean ENABLED = Boolean.getBoolean("rubt.virtualThreads");
+
+	// Thread.ofVirtual(), Thread.Builder.name(String) and Thread.Builder.start(Runnable),
+	// looked up reflectively so that the client still builds and runs on older JVMs.
+	private static Method ofVirtual;
+	private static Method name;
+	private static Method start;
+
+	static {
+		if (ENABLED) {
+			try {
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				name = builder.getMethod("name", String.class);
+				start = builder.getMethod("start", Runnable.class);
+			} catch (Exception e) {
+				System.out.println("Virtual threads are not supported by this JVM, using platform threads.");
+				ofVirtual = null;
+			}
+		}
+	}
+
+	/**
+	 * Starts a thread, virtual if possible.
+	 *
+	 * @param r What to run
+	 * @param threadName Name of the new thread
+	 * @return The started thread
+	 */
+	public static Thread start(Runnable r, String threadName) {
+		if (ofVirtual != null) {
+			try {
+				return (Thread) start.invoke(name.invoke(ofVirtual.invoke(null), threadName), r);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		Thread t = new Thread(r, threadName);
+		t.start();
+		return t;
+	}
+}
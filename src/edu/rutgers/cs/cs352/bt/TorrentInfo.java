@@ -19,9 +19,12 @@
 
 package edu.rutgers.cs.cs352.bt;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -103,6 +106,17 @@ public class TorrentInfo
 	 * The base URL of the tracker for client scrapes.
 	 */
 	public final URL announce_url;
+
+	/**
+	 * java.net.URL has no handler for udp:// tracker URLs (BEP 15).  They are
+	 * only ever taken apart, never opened, so this one refuses to open them.
+	 */
+	private static final URLStreamHandler UDP_HANDLER = new URLStreamHandler() {
+		@Override
+		protected URLConnection openConnection(URL u) throws IOException {
+			throw new IOException("udp:// URLs cannot be opened: " + u);
+		}
+	};
 	
 	/**
 	 * The default length of each piece in bytes.&nbsp; Note that the last piece may be irregularly-sized (less than the value of piece_length)
@@ -151,7 +165,10 @@ public class TorrentInfo
 		
 		try {
 			String url_string = new String(url_buff.array(), "ASCII");
-			this.announce_url = new URL(url_string);
+			if (url_string.startsWith("udp://"))
+				this.announce_url = new URL(null, url_string, UDP_HANDLER);
+			else
+				this.announce_url = new URL(url_string);
 		}
 		catch(UnsupportedEncodingException uee)
 		{